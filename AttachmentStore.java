@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+class AttachmentStore {
+    static final String HAVE = "/have";
+
+    private static final int HASH_LENGTH = 64;
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+    private static final long GRACE_MILLIS = Long.getLong("chat.blobGraceMinutes", 60) * 60 * 1000;
+    private static final String EVERYONE = "ALL";
+
+    private final File blobDirectory;
+    private final File referencesFile;
+    // Who may download each blob: the parties of every announcement that used it, or EVERYONE for public ones.
+    private final Map<String, Set<String>> readers = new ConcurrentHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private Writer referencesWriter;
+
+    AttachmentStore(String fileDir) {
+        this.blobDirectory = new File(fileDir, "blobs");
+        this.referencesFile = new File(blobDirectory, "references.txt");
+    }
+
+    // references.txt holds one "<hash>\t<user>" line per reader; a bare hash predates readers and is public.
+    void load() {
+        blobDirectory.mkdirs();
+        if (referencesFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(referencesFile), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int tab = line.indexOf('\t');
+                    String hash = tab < 0 ? line : line.substring(0, tab);
+                    if (isHash(hash)) {
+                        readersOf(hash).add(tab < 0 ? EVERYONE : line.substring(tab + 1));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            referencesWriter = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(referencesFile, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Attachment store loaded with " + readers.size() + " announced blobs.");
+    }
+
+    File createTempFile() throws IOException {
+        blobDirectory.mkdirs();
+        return Files.createTempFile(blobDirectory.toPath(), "incoming", ".part").toFile();
+    }
+
+    // Moves a received file into the store under its SHA-256; if that blob already exists the copy is dropped.
+    String add(File file, String fileName) throws IOException {
+        String hash = sha256(file);
+        File blob = new File(blobDirectory, hash);
+        lock.lock();
+        try {
+            if (blob.exists()) {
+                Files.delete(file.toPath());
+                blob.setLastModified(System.currentTimeMillis());
+            } else {
+                Files.move(file.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return hash + "_" + fileName;
+    }
+
+    // Returns the stored name for a blob the server already has, or null so the client sends the bytes.
+    String find(String hash, String fileName) {
+        if (!isHash(hash)) {
+            return null;
+        }
+        File blob = new File(blobDirectory, hash);
+        lock.lock();
+        try {
+            if (!blob.isFile()) {
+                return null;
+            }
+            blob.setLastModified(System.currentTimeMillis());
+            return hash + "_" + fileName;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Announcements stay in the chat history for good, so a reader is never taken away again.
+    void announce(String storedName, String sender, String recipient) {
+        String hash = hashOf(storedName);
+        if (hash == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (recipient.equals(EVERYONE)) {
+                addReader(hash, EVERYONE);
+            } else {
+                addReader(hash, sender);
+                addReader(hash, recipient);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean mayRead(String storedName, String user) {
+        String hash = hashOf(storedName);
+        Set<String> allowed = hash != null ? readers.get(hash) : null;
+        return allowed != null && (allowed.contains(EVERYONE) || allowed.contains(user));
+    }
+
+    private void addReader(String hash, String user) throws IOException {
+        if (readersOf(hash).add(user) && referencesWriter != null) {
+            referencesWriter.write(hash + "\t" + user + "\n");
+            referencesWriter.flush();
+        }
+    }
+
+    private Set<String> readersOf(String hash) {
+        return readers.computeIfAbsent(hash, key -> ConcurrentHashMap.newKeySet());
+    }
+
+    File resolve(String storedName) {
+        String hash = hashOf(storedName);
+        if (hash == null) {
+            return null;
+        }
+        File blob = new File(blobDirectory, hash);
+        return blob.isFile() ? blob : null;
+    }
+
+    // Blobs nobody announced (an offline DM recipient, an abandoned handshake) are removed after a grace period.
+    int collectGarbage() {
+        File[] blobs = blobDirectory.listFiles((dir, name) -> isHash(name));
+        if (blobs == null) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - GRACE_MILLIS;
+        int removed = 0;
+        lock.lock();
+        try {
+            for (File blob : blobs) {
+                if (!readers.containsKey(blob.getName()) && blob.lastModified() < cutoff && blob.delete()) {
+                    removed++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        return removed;
+    }
+
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static String hashOf(String storedName) {
+        if (storedName.length() > HASH_LENGTH && storedName.charAt(HASH_LENGTH) == '_') {
+            String hash = storedName.substring(0, HASH_LENGTH);
+            return isHash(hash) ? hash : null;
+        }
+        return null;
+    }
+
+    private static boolean isHash(String value) {
+        if (value.length() != HASH_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            char c = value.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,21 +1,25 @@
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class ChatClient {
-    private static final String SERVER_ADDRESS = "192.168.1.10";
-    private static final int SERVER_PORT = 12345;
-    private Socket socket;
-    private BufferedReader serverIn;
-    private PrintWriter serverOut;
+    private static final String SERVER_ADDRESS = System.getProperty("chat.host", "192.168.1.10");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 12345);
+    private static final int FILE_PORT = Integer.getInteger("chat.filePort", 12346);
+    private static final int UPLOAD_CONNECTIONS = 4;
+    private final ResumeState resume = new ResumeState();
+    private volatile Socket socket;
+    private volatile BufferedReader serverIn;
+    private volatile PrintWriter serverOut;
+    private volatile DataInputStream frameIn;
+    private volatile DataOutputStream frameOut;
+    private volatile boolean exiting;
     private String username;
 
     public ChatClient() {
         try {
-            socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-            serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            serverOut = new PrintWriter(socket.getOutputStream(), true);
-
+            connect();
             System.out.println("Connected to the chat server.");
 
             if (!authenticate()) {
@@ -44,9 +48,9 @@ public class ChatClient {
             System.out.print("Enter password: ");
             String password = scanner.nextLine().trim();
 
-            serverOut.println("/" + action + " " + username + " " + password);
+            sendLine("/" + action + " " + username + " " + password);
 
-            String response = serverIn.readLine();
+            String response = readLine();
             System.out.println(response);
 
             if (response.startsWith("Login successful") || response.startsWith("Registration successful")) {
@@ -55,14 +59,75 @@ public class ChatClient {
         }
     }
 
+    private void connect() throws IOException {
+        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        if ("binary".equalsIgnoreCase(System.getProperty("chat.protocol"))) {
+            negotiateBinary();
+        } else {
+            serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            serverOut = new PrintWriter(socket.getOutputStream(), true);
+        }
+    }
+
     private void readMessages() {
+        do {
+            receiveMessages();
+        } while (!exiting && reconnect());
+    }
+
+    // Resumes the session after a dropped connection; the server replays only what this client has not seen.
+    private boolean reconnect() {
+        System.out.println("Connection lost. Reconnecting...");
+        for (int attempt = 0; resume.canResume() && !exiting; attempt++) {
+            try {
+                Thread.sleep(ResumeState.backoffMillis(attempt));
+                connect();
+                sendLine(resume.resumeCommand());
+                String response = readLine();
+                if (response != null && response.startsWith("Session resumed")) {
+                    System.out.println("Reconnected.");
+                    return true;
+                }
+                if (response != null) {
+                    System.out.println(response);
+                    resume.forget();
+                }
+            } catch (IOException e) {
+                // server still unreachable, try again after the next delay
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        System.out.println("Disconnected from server.");
+        return false;
+    }
+
+    private void receiveMessages() {
         try {
             String message;
-            while ((message = serverIn.readLine()) != null) {
-                System.out.println(message);
+            while ((message = readLine()) != null) {
+                if (resume.observe(message)) {
+                    continue;
+                } else if (message.startsWith("[ACK]")) {
+                    sendLine("/ack " + message.substring(5));
+                } else if (message.startsWith("[DOWNLOAD]")) {
+                    System.out.println("Type /download " + message.substring(10) + " to save the file.");
+                } else if (message.startsWith("/users ")) {
+                    String[] snapshot = message.split(" ", 3);
+                    System.out.println("Online: " + (snapshot.length > 2 ? snapshot[2].replace(",", ", ") : ""));
+                } else if (message.startsWith("/presence ")) {
+                    String[] delta = message.split(" ");
+                    for (int i = 3; i < delta.length; i++) {
+                        String user = delta[i].substring(1);
+                        System.out.println(user + (delta[i].charAt(0) == '+' ? " joined the chat." : " left the chat."));
+                    }
+                } else {
+                    System.out.println(message);
+                }
             }
         } catch (IOException e) {
-            System.out.println("Disconnected from server.");
+            // handled by reconnect
         }
     }
 
@@ -74,26 +139,100 @@ public class ChatClient {
             String message = scanner.nextLine();
 
             if (message.equalsIgnoreCase("/exit")) {
-                serverOut.println("/exit");
+                exiting = true;
+                sendLine("/exit");
                 break;
             } else if (message.equalsIgnoreCase("/history")) {
-                serverOut.println("/history");
+                sendLine("/history");
+            } else if (message.startsWith("/download ")) {
+                String path = message.substring(10).trim();
+                new Thread(() -> downloadFile(path)).start();
+            } else if (message.startsWith("/upload ")) {
+                String[] parts = message.split(" ", 3);
+                if (parts.length < 3) {
+                    System.out.println("Invalid upload format. Use: /upload <username|ALL> <path>");
+                } else {
+                    new Thread(() -> uploadFile(parts[1], new File(parts[2].trim()))).start();
+                }
             } else if (message.startsWith("/private")) {
 
                 if (message.split(" ", 3).length < 3) {
                     System.out.println("Invalid private message format. Use: /private <username> <message>");
                 } else {
-                    serverOut.println(message);
+                    sendLine(message);
                 }
             } else if (message.trim().isEmpty()) {
                 System.out.println("Message cannot be empty.");
             } else {
-                serverOut.println(message);
+                sendLine(message);
             }
         }
         System.out.println("You have left the chat.");
     }
 
+    // Switches the connection to length-prefixed frames; replies come back compressed when they are large.
+    private void negotiateBinary() throws IOException {
+        frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frameOut.write((Frame.NEGOTIATE + " deflate\n").getBytes(StandardCharsets.UTF_8));
+        frameOut.flush();
+        String reply = Frame.readLine(frameIn);
+        if (reply == null || !reply.startsWith("OK")) {
+            throw new IOException("Server does not support binary frames");
+        }
+    }
+
+    private String readLine() throws IOException {
+        if (frameIn == null) {
+            return serverIn.readLine();
+        }
+        try {
+            Frame frame = Frame.read(frameIn);
+            return frame.toLine();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void sendLine(String line) {
+        if (frameOut == null) {
+            serverOut.println(line);
+            return;
+        }
+        try {
+            Frame.write(frameOut, Frame.fromLine(line), Frame.Format.DEFLATE);
+        } catch (IOException e) {
+            System.out.println("Error sending message: " + e.getMessage());
+        }
+    }
+
+    private void downloadFile(String path) {
+        File downloadDir = new File(System.getProperty("user.home"), "Downloads");
+        if (!downloadDir.exists()) {
+            downloadDir.mkdirs();
+        }
+        try {
+            File file = new FileTransferClient(SERVER_ADDRESS, FILE_PORT, resume.token()).download(path, downloadDir);
+            System.out.println("File saved to: " + file.getAbsolutePath());
+        } catch (IOException e) {
+            System.out.println("Download failed: " + e.getMessage());
+        }
+    }
+
+    private void uploadFile(String recipient, File file) {
+        if (!file.isFile()) {
+            System.out.println("No such file: " + file);
+            return;
+        }
+        try {
+            String path = new FileTransferClient(SERVER_ADDRESS, FILE_PORT, resume.token())
+                    .upload(file, recipient, UPLOAD_CONNECTIONS);
+            System.out.println("File uploaded: " + path);
+        } catch (IOException e) {
+            System.out.println("Upload failed: " + e.getMessage());
+        }
+    }
+
     public static void main(String[] args) {
         new ChatClient();
     }
@@ -3,22 +3,29 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
-import java.nio.file.Files;
 import java.util.Arrays;
-import java.util.Base64;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
 
 public class ChatClientGUI extends JFrame {
-    private static final String SERVER_ADDRESS = "192.168.1.10";
-    private static final int SERVER_PORT = 12345;
+    private static final String SERVER_ADDRESS = System.getProperty("chat.host", "192.168.1.10");
+    private static final int SERVER_PORT = Integer.getInteger("chat.port", 12345);
+    private static final int FILE_PORT = Integer.getInteger("chat.filePort", 12346);
+    private static final int UPLOAD_CONNECTIONS = 4;
 
+    private final ResumeState resume = new ResumeState();
     private Socket socket;
-    private PrintWriter serverOut;
-    private BufferedReader serverIn;
+    private volatile PrintWriter serverOut;
+    private volatile BufferedReader serverIn;
 
     private JTextArea chatArea;
+    private ChatTranscript transcript;
     private JTextField messageField;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
+    private long presenceVersion = -1;
     private String username;
 
     public static void main(String[] args) {
@@ -120,9 +127,7 @@ public class ChatClientGUI extends JFrame {
     private void handleAuthentication(String username, String password, String command, JDialog loginDialog) {
         try {
             if (socket == null) {
-                socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
-                serverOut = new PrintWriter(socket.getOutputStream(), true);
-                serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                connect();
             }
 
             serverOut.println(command + " " + username + " " + password);
@@ -158,7 +163,9 @@ public class ChatClientGUI extends JFrame {
         chatArea.setFont(new Font("Segoe UI Emoji", Font.PLAIN, 14));
         chatArea.setBackground(chatBackgroundColor);
         chatArea.setBorder(BorderFactory.createMatteBorder(0, 0, 28, 0, new Color(124, 69, 133)));
-        add(new JScrollPane(chatArea), BorderLayout.CENTER);
+        JScrollPane chatScrollPane = new JScrollPane(chatArea);
+        transcript = new ChatTranscript(chatArea, chatScrollPane);
+        add(chatScrollPane, BorderLayout.CENTER);
 
         JPanel bottomPanel = new JPanel(new BorderLayout());
         bottomPanel.setBackground(chatBackgroundColor);
@@ -223,29 +230,95 @@ public class ChatClientGUI extends JFrame {
         emojiMenu.show(this, messageField.getX(), messageField.getY() - emojiMenu.getPreferredSize().height);
     }
 
+    private void connect() throws IOException {
+        socket = new Socket(SERVER_ADDRESS, SERVER_PORT);
+        serverOut = new PrintWriter(socket.getOutputStream(), true);
+        serverIn = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    }
+
     private void readMessages() {
+        do {
+            receiveMessages();
+        } while (reconnect());
+        SwingUtilities.invokeLater(() ->
+                JOptionPane.showMessageDialog(this, "Connection lost.", "Error", JOptionPane.ERROR_MESSAGE));
+    }
+
+    // Resumes the session with backoff; the server replays only the messages this window has not shown.
+    private boolean reconnect() {
+        transcript.append("Connection lost. Reconnecting...");
+        for (int attempt = 0; resume.canResume(); attempt++) {
+            try {
+                Thread.sleep(ResumeState.backoffMillis(attempt));
+                connect();
+                serverOut.println(resume.resumeCommand());
+                String response = serverIn.readLine();
+                if (response != null && response.startsWith("Session resumed")) {
+                    transcript.append("Reconnected.");
+                    return true;
+                }
+                if (response != null) {
+                    resume.forget();
+                }
+            } catch (IOException e) {
+                // server still unreachable, try again after the next delay
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private void receiveMessages() {
         try {
             String message;
             while ((message = serverIn.readLine()) != null) {
-                if (message.startsWith("/users ")) {
-                    updateOnlineUsers(message.substring(7));
-                } else if (message.startsWith("/file ")) {
-                    receiveFile(message);
-                } else if (message.startsWith("/joined ")) {
-                    String user = message.substring(8);
-                    chatArea.append(user + " has joined the chat.\n");
-                } else if (message.startsWith("/left ")) {
-                    String user = message.substring(6);
-                    chatArea.append(user + " has left the chat.\n");
+                if (resume.observe(message)) {
+                    continue;
+                } else if (message.startsWith("/users ")) {
+                    String[] snapshot = message.split(" ", 3);
+                    presenceVersion = Long.parseLong(snapshot[1]);
+                    updateOnlineUsers(snapshot.length > 2 ? snapshot[2] : "");
+                } else if (message.startsWith("/presence ")) {
+                    applyPresence(message.split(" "));
+                } else if (message.startsWith("[ACK]")) {
+                    serverOut.println("/ack " + message.substring(5));
+                } else if (message.startsWith("[DOWNLOAD]")) {
+                    String path = message.substring(10);
+                    SwingUtilities.invokeLater(() -> offerDownload(path));
                 } else {
-                    chatArea.append(message + "\n");
+                    transcript.append(message);
                 }
             }
         } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Connection lost.", "Error", JOptionPane.ERROR_MESSAGE);
+            // handled by reconnect
         }
     }
 
+    // "/presence <from> <to> +alice -bob"; a delta that does not follow our version means we missed one.
+    private void applyPresence(String[] delta) {
+        if (delta.length < 3 || Long.parseLong(delta[1]) != presenceVersion) {
+            serverOut.println("/users");
+            return;
+        }
+        presenceVersion = Long.parseLong(delta[2]);
+        SwingUtilities.invokeLater(() -> {
+            for (int i = 3; i < delta.length; i++) {
+                String user = delta[i].substring(1);
+                if (delta[i].charAt(0) == '+') {
+                    if (!userListModel.contains(user)) {
+                        userListModel.addElement(user);
+                    }
+                    transcript.append(user + " has joined the chat.");
+                } else {
+                    userListModel.removeElement(user);
+                    transcript.append(user + " has left the chat.");
+                }
+            }
+        });
+    }
+
     private void updateOnlineUsers(String userListStr) {
         SwingUtilities.invokeLater(() -> {
             userListModel.clear();
@@ -274,43 +347,114 @@ public class ChatClientGUI extends JFrame {
         int result = fileChooser.showOpenDialog(this);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            try {
-                byte[] fileBytes = Files.readAllBytes(file.toPath());
-                String encoded = Base64.getEncoder().encodeToString(fileBytes);
-                serverOut.println("/file " + file.getName() + " " + encoded);
-            } catch (IOException e) {
-                JOptionPane.showMessageDialog(this, "Failed to send file.", "Error", JOptionPane.ERROR_MESSAGE);
+            String recipient = (String) JOptionPane.showInputDialog(this, "Send " + file.getName()
+                    + " to (username or ALL):", "Send File", JOptionPane.QUESTION_MESSAGE, null, null, "ALL");
+            if (recipient == null || recipient.trim().isEmpty()) {
+                return;
             }
+            new TransferWorker("Sending " + file.getName(), file.length(),
+                    (client, sizeListener) -> client.upload(file, recipient.trim(), UPLOAD_CONNECTIONS),
+                    path -> transcript.append("File sent: " + file.getName())).start();
         }
     }
 
-    private void receiveFile(String message) {
-        try {
-            String[] parts = message.split(" ", 3);
-            if (parts.length < 3)
-                return;
+    private void offerDownload(String path) {
+        String storedName = path.substring(path.lastIndexOf('/') + 1);
+        String fileName = storedName.substring(storedName.indexOf('_') + 1);
+        int choice = JOptionPane.showConfirmDialog(this, "Download " + fileName + "?", "File Received",
+                JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            return;
+        }
 
-            String fileName = parts[1];
-            byte[] fileBytes = Base64.getDecoder().decode(parts[2]);
+        File downloadDir = new File(System.getProperty("user.home"), "Downloads");
+        if (!downloadDir.exists())
+            downloadDir.mkdirs();
+
+        new TransferWorker("Receiving " + fileName, -1,
+                (client, sizeListener) -> client.download(path, downloadDir, sizeListener).getAbsolutePath(),
+                savedPath -> {
+                    transcript.append("File received and saved to: " + savedPath);
+                    if (Desktop.isDesktopSupported()) {
+                        try {
+                            Desktop.getDesktop().open(new File(savedPath));
+                        } catch (IOException ex) {
+                            transcript.append("Failed to open file: " + ex.getMessage());
+                        }
+                    }
+                }).start();
+    }
 
-            File downloadDir = new File(System.getProperty("user.home"), "Downloads");
-            if (!downloadDir.exists())
-                downloadDir.mkdirs();
+    private interface Transfer {
+        String run(FileTransferClient client, LongConsumer sizeListener) throws IOException;
+    }
 
-            File outFile = new File(downloadDir, fileName);
-            Files.write(outFile.toPath(), fileBytes);
+    // Runs a file-port transfer off the EDT with a progress dialog; Cancel interrupts the transfer threads.
+    // A download starts with an unknown size and becomes determinate once the server has sent it.
+    private class TransferWorker extends SwingWorker<String, Void> {
+        private final String title;
+        private volatile long size;
+        private final Transfer transfer;
+        private final Consumer<String> onDone;
+        private final JDialog dialog = new JDialog(ChatClientGUI.this, "File Transfer", false);
+        private final JProgressBar progressBar = new JProgressBar(0, 100);
+
+        TransferWorker(String title, long size, Transfer transfer, Consumer<String> onDone) {
+            this.title = title;
+            this.size = size;
+            this.transfer = transfer;
+            this.onDone = onDone;
+        }
 
-            chatArea.append("File received and saved to: " + outFile.getAbsolutePath() + "\n");
+        void start() {
+            JButton cancelButton = createRoundedButton("Cancel", new Color(198, 40, 40));
+            cancelButton.addActionListener(e -> cancel(true));
+            progressBar.setStringPainted(true);
+            progressBar.setIndeterminate(size <= 0);
+
+            JPanel panel = new JPanel(new BorderLayout(10, 10));
+            panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+            panel.add(new JLabel(title), BorderLayout.NORTH);
+            panel.add(progressBar, BorderLayout.CENTER);
+            panel.add(cancelButton, BorderLayout.SOUTH);
+            dialog.add(panel);
+            dialog.setSize(360, 160);
+            dialog.setLocationRelativeTo(ChatClientGUI.this);
+            dialog.setVisible(true);
+
+            addPropertyChangeListener(event -> {
+                if ("progress".equals(event.getPropertyName())) {
+                    progressBar.setValue((Integer) event.getNewValue());
+                }
+            });
+            execute();
+        }
 
-            if (Desktop.isDesktopSupported()) {
-                try {
-                    Desktop.getDesktop().open(outFile);
-                } catch (IOException ex) {
-                    chatArea.append("Failed to open file: " + ex.getMessage() + "\n");
+        @Override
+        protected String doInBackground() throws IOException {
+            FileTransferClient client = new FileTransferClient(SERVER_ADDRESS, FILE_PORT, resume.token(), bytes -> {
+                if (size > 0) {
+                    setProgress((int) Math.min(100, bytes * 100 / size));
                 }
+            });
+            return transfer.run(client, total -> {
+                size = total;
+                SwingUtilities.invokeLater(() -> progressBar.setIndeterminate(total <= 0));
+            });
+        }
+
+        @Override
+        protected void done() {
+            dialog.dispose();
+            try {
+                onDone.accept(get());
+            } catch (CancellationException e) {
+                transcript.append(title + " cancelled.");
+            } catch (InterruptedException | ExecutionException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                JOptionPane.showMessageDialog(ChatClientGUI.this, title + " failed: " + cause.getMessage(),
+                        "Error", JOptionPane.ERROR_MESSAGE);
             }
-        } catch (Exception e) {
-            chatArea.append("Failed to receive file.\n");
         }
     }
-}
\ No newline at end of file
+}
@@ -1,27 +1,138 @@
 import java.io.*;
 import java.net.*;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
 
 public class ChatServer {
-    private static final int PORT = 12345;
-    private static final int FILE_PORT = 12346;
+    private static final int PORT = Integer.getInteger("chat.port", 12345);
+    private static final int FILE_PORT = Integer.getInteger("chat.filePort", 12346);
     private static final String FILE_DIR = "received_files";
-    private static final Map<String, ClientHandler> clientHandlers = new HashMap<>();
-    private static final Map<String, String> users = new HashMap<>();
-    private static final SimpleDateFormat timestampFormatter = new SimpleDateFormat("HH:mm:ss");
+    private static final long TRANSFER_CHUNK = 8L * 1024 * 1024;
+    private static final String MODE = System.getProperty("chat.mode", "blocking");
+    private static final int EVENT_LOOPS = Integer.getInteger("chat.eventLoops",
+            Runtime.getRuntime().availableProcessors());
+    private static final int FILE_WORKERS = Integer.getInteger("chat.fileWorkers", 8);
+    private static final int HISTORY_PAGE_SIZE = Integer.getInteger("chat.historyPageSize", 50);
+    private static final int HISTORY_MAX_PAGE_SIZE = 500;
+    private static final int QUEUE_REPORT_SECONDS = Integer.getInteger("chat.queueReportSeconds", 60);
+    private static final int CONVERSATION_LOCK_STRIPES = 64;
+    private static final Map<String, ChatSession> clientHandlers = new ConcurrentHashMap<>();
+    private static final DateTimeFormatter timestampFormatter = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final ReentrantLock[] conversationLocks = new ReentrantLock[CONVERSATION_LOCK_STRIPES];
+    private static final UserStore userStore = new UserStore("users.txt");
+    private static final MessageLog messageLog = MessageLog.fromSystemProperties();
+    private static final ConversationIndex conversationIndex = new ConversationIndex("conversations.txt");
+    private static final OfflineMessages offlineMessages = new OfflineMessages("offline");
+    private static final Rooms rooms = new Rooms("rooms.txt");
+    private static final int BLOB_GC_MINUTES = Integer.getInteger("chat.blobGcMinutes", 60);
+    private static final AttachmentStore attachments = new AttachmentStore(FILE_DIR);
+    private static final ChunkedUploads chunkedUploads = new ChunkedUploads(FILE_DIR, attachments);
+    private static final MessageBus bus = MessageBus.fromSystemProperties();
+    private static final Map<String, String> remoteSessions = new ConcurrentHashMap<>();
+    private static final int PRESENCE_FLUSH_MILLIS = Integer.getInteger("chat.presenceFlushMillis", 250);
+    private static final Presence presence = new Presence();
+    private static final Map<ChatSession, Long> presenceDrops = new ConcurrentHashMap<>();
+    private static final SessionTokens sessionTokens = new SessionTokens();
+    private static final Map<ChatSession, Map<String, Long>> pendingReplays = new ConcurrentHashMap<>();
+    private static final SearchIndex searchIndex = new SearchIndex("search");
+    private static final int SEARCH_PAGE_SIZE = Integer.getInteger("chat.searchPageSize", 20);
+    private static final int SEARCH_FLUSH_SECONDS = Integer.getInteger("chat.searchFlushSeconds", 60);
+    private static final int METRICS_PORT = Integer.getInteger("chat.metricsPort", 12347);
+
+    static {
+        for (int i = 0; i < conversationLocks.length; i++) {
+            conversationLocks[i] = new ReentrantLock();
+        }
+    }
 
     public static void main(String[] args) {
-        loadUsers();
-        System.out.println("Chat server is running on port " + PORT);
+        try {
+            userStore.load();
+        } catch (IOException e) {
+            System.out.println("Unable to load users: " + e.getMessage());
+            return;
+        }
+        conversationIndex.load(userStore.usernames());
+        rooms.load();
+        attachments.load();
+        try {
+            searchIndex.load();
+            searchIndex.catchUp(allLogFiles(), messageLog);
+        } catch (IOException e) {
+            System.out.println("Unable to load the search index: " + e.getMessage());
+            return;
+        }
+        try {
+            bus.start(new ClusterListener());
+        } catch (IOException e) {
+            System.out.println("Unable to join the cluster: " + e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            searchIndex.close();
+            messageLog.close();
+        }, "message-log-shutdown"));
+        registerGauges();
+        Metrics.start(METRICS_PORT);
+        System.out.println("Chat server is running on port " + PORT + " (" + MODE + " mode)");
 
         new Thread(ChatServer::startFileServer).start();
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "server-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            int removed = attachments.collectGarbage();
+            if (removed > 0) {
+                System.out.println("Removed " + removed + " unannounced attachments.");
+            }
+        }, BLOB_GC_MINUTES, BLOB_GC_MINUTES, TimeUnit.MINUTES);
+        reporter.scheduleAtFixedRate(sessionTokens::expire, 1, 1, TimeUnit.MINUTES);
+        reporter.scheduleAtFixedRate(chunkedUploads::expireStale, 0, 1, TimeUnit.HOURS);
+        reporter.scheduleWithFixedDelay(searchIndex::flushQuietly,
+                SEARCH_FLUSH_SECONDS, SEARCH_FLUSH_SECONDS, TimeUnit.SECONDS);
+        reporter.scheduleWithFixedDelay(ChatServer::flushPresence,
+                PRESENCE_FLUSH_MILLIS, PRESENCE_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        if (QUEUE_REPORT_SECONDS > 0) {
+            reporter.scheduleAtFixedRate(ChatServer::reportOutboundQueues,
+                    QUEUE_REPORT_SECONDS, QUEUE_REPORT_SECONDS, TimeUnit.SECONDS);
+            reporter.scheduleAtFixedRate(() -> System.out.println(messageLog.cacheStats()),
+                    QUEUE_REPORT_SECONDS, QUEUE_REPORT_SECONDS, TimeUnit.SECONDS);
+        }
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
+        if (MODE.equalsIgnoreCase("nio")) {
+            try {
+                new NioChatServer(PORT, EVENT_LOOPS).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(PORT));
             while (true) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New client connected.");
-                new Thread(new ClientHandler(socket)).start();
+                SocketChannel channel = serverChannel.accept();
+                Metrics.connectionsAccepted.increment();
+                startWorker(new ClientHandler(channel));
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -34,269 +145,1226 @@ public class ChatServer {
             directory.mkdir();
         }
 
-        try (ServerSocket fileServerSocket = new ServerSocket(FILE_PORT)) {
+        ExecutorService fileWorkers = MODE.equalsIgnoreCase("nio")
+                ? Executors.newFixedThreadPool(FILE_WORKERS)
+                : null;
+        try (ServerSocketChannel fileServerChannel = ServerSocketChannel.open()) {
+            fileServerChannel.bind(new InetSocketAddress(FILE_PORT));
             System.out.println("File server running on port " + FILE_PORT);
             while (true) {
-                Socket fileSocket = fileServerSocket.accept();
-                new Thread(() -> handleFileReceive(fileSocket)).start();
+                SocketChannel fileChannel = fileServerChannel.accept();
+                if (fileWorkers != null) {
+                    fileWorkers.execute(() -> handleFileConnection(fileChannel));
+                } else {
+                    startWorker(() -> handleFileConnection(fileChannel));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    static void startWorker(Runnable task) {
+        if (MODE.equalsIgnoreCase("virtual")) {
+            Thread.ofVirtual().start(task);
+        } else {
+            new Thread(task).start();
+        }
+    }
+
+    // A file connection opens with the session token of a logged-in chat connection; uploads are sent as that user
+    // and downloads are limited to files announced to them.
+    private static void handleFileConnection(SocketChannel fileChannel) {
+        try (SocketChannel channel = fileChannel) {
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+            String user = dis.readUTF().equals(SessionTokens.FILE_AUTH) ? sessionTokens.username(dis.readUTF()) : null;
+            if (user == null) {
+                dos.writeUTF("ERR not logged in");
+                dos.flush();
+                return;
+            }
+            dos.writeUTF("OK");
+            dos.flush();
+
+            String op = dis.readUTF();
+            if (op.equals("/download")) {
+                handleFileDownload(channel, dis.readUTF(), user);
+            } else if (op.equals(AttachmentStore.HAVE)) {
+                handleHave(channel, dis, user);
+            } else if (op.startsWith("/upload-")) {
+                chunkedUploads.serve(op, channel, dis, user,
+                        upload -> announceFile(upload.sender, upload.recipient, upload.fileName, upload.storedName));
+            } else if (op.equals(user)) {
+                handleFileReceive(channel, dis, user);
+            } else {
+                throw new IOException("Unknown file operation from " + user);
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void handleFileReceive(Socket fileSocket) {
-        try (DataInputStream dis = new DataInputStream(fileSocket.getInputStream())) {
-            String sender = dis.readUTF();
-            String recipient = dis.readUTF();
-            String fileName = dis.readUTF();
-            long fileSize = dis.readLong();
+    private static void handleFileDownload(SocketChannel channel, String requestedPath, String user)
+            throws IOException {
+        DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+        File file = resolveDownload(requestedPath, user);
+        if (file == null) {
+            dos.writeLong(-1);
+            dos.flush();
+            return;
+        }
+
+        try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = source.size();
+            dos.writeLong(size);
+            dos.flush();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, Math.min(TRANSFER_CHUNK, size - position), channel);
+            }
+            Metrics.fileBytesSent.add(size);
+        }
+        System.out.println("File served: " + file.getName() + " to " + user);
+    }
 
-            String uniqueFileName = System.currentTimeMillis() + "_" + fileName;
-            File outputFile = new File(FILE_DIR, uniqueFileName);
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                byte[] buffer = new byte[4096];
-                int read;
-                long remaining = fileSize;
-                while ((read = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining))) > 0) {
-                    fos.write(buffer, 0, read);
-                    remaining -= read;
+    // Blobs not announced to the user look the same as missing ones.
+    private static File resolveDownload(String requestedPath, String user) {
+        String name = requestedPath.startsWith(FILE_DIR + "/")
+                ? requestedPath.substring(FILE_DIR.length() + 1)
+                : requestedPath;
+        String storedName = new File(name).getName();
+        File blob = attachments.resolve(storedName);
+        if (blob != null) {
+            return attachments.mayRead(storedName, user) ? blob : null;
+        }
+        // files received before the attachment store have no announcement to check against
+        File file = new File(FILE_DIR, storedName);
+        return file.isFile() ? file : null;
+    }
+
+    // Knowing a hash does not prove having the file, so only blobs the user can already read skip the upload.
+    private static void handleHave(SocketChannel channel, DataInputStream dis, String sender) throws IOException {
+        String recipient = dis.readUTF();
+        String fileName = new File(dis.readUTF()).getName();
+        String storedName = attachments.find(dis.readUTF(), fileName);
+
+        DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+        if (storedName == null || !attachments.mayRead(storedName, sender)) {
+            dos.writeUTF("SEND");
+        } else {
+            announceFile(sender, recipient, fileName, storedName);
+            dos.writeUTF("HAVE");
+            dos.writeUTF(FILE_DIR + "/" + storedName);
+        }
+        dos.flush();
+    }
+
+    private static void handleFileReceive(SocketChannel channel, DataInputStream dis, String sender)
+            throws IOException {
+        String recipient = dis.readUTF();
+        String fileName = new File(dis.readUTF()).getName();
+        long fileSize = dis.readLong();
+        if (fileSize < 0 || fileSize > ChunkedUploads.MAX_UPLOAD_BYTES) {
+            throw new IOException("Upload of " + fileName + " from " + sender + " has invalid size " + fileSize);
+        }
+
+        File outputFile = attachments.createTempFile();
+        long position = 0;
+        try (FileChannel target = FileChannel.open(outputFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (position < fileSize) {
+                long transferred = target.transferFrom(channel, position,
+                        Math.min(TRANSFER_CHUNK, fileSize - position));
+                if (transferred <= 0) {
+                    break;
                 }
+                position += transferred;
             }
+        }
+        Metrics.fileBytesReceived.add(position);
+        if (position < fileSize) {
+            Files.deleteIfExists(outputFile.toPath());
+            throw new EOFException("Upload of " + fileName + " from " + sender + " ended early");
+        }
+
+        announceFile(sender, recipient, fileName, attachments.add(outputFile, fileName));
+    }
 
-            String fileNotice = "[" + timestampFormatter.format(new Date()) + "] "
-                    + sender + " sent file: " + fileName;
+    private static void announceFile(String sender, String recipient, String fileName, String storedName) {
+        String fileNotice = timestamp() + sender + " sent file: " + fileName;
 
-            if (recipient.equals("ALL")) {
-                saveMessage("public_chat.txt", fileNotice);
-                for (ClientHandler client : clientHandlers.values()) {
-                    client.sendMessage(fileNotice + " (download: " + FILE_DIR + "/" + uniqueFileName + ")");
-                    client.sendDownloadCommand(FILE_DIR + "/" + uniqueFileName);
+        if (recipient.equals("ALL")) {
+            CompletableFuture<Void> commit;
+            ReentrantLock lock = lockFor("public_chat.txt");
+            lock.lock();
+            try {
+                commit = saveMessage("public_chat.txt", fileNotice);
+                attachments.announce(storedName, sender, recipient);
+                fanOut(sequenced(Frame.PUBLIC, "public_chat.txt", "public",
+                        fileNotice + " (download: " + FILE_DIR + "/" + storedName + ")"));
+                fanOut(new Frame(Frame.FILE, FILE_DIR + "/" + storedName));
+            } finally {
+                lock.unlock();
+            }
+            messageLog.awaitCommit(commit);
+        } else {
+            ChatSession target = clientHandlers.get(recipient);
+            ChatSession senderHandler = clientHandlers.get(sender);
+            if (target == null && !userStore.usernames().contains(recipient)) {
+                if (senderHandler != null) {
+                    senderHandler.sendMessage("User '" + recipient + "' not found. " + fileName + " was not delivered.");
                 }
-            } else {
-                ClientHandler target = clientHandlers.get(recipient);
+                return;
+            }
+            String chatFileName = getChatFileName(sender, recipient);
+            CompletableFuture<Void> commit = null;
+            ReentrantLock lock = lockFor(chatFileName);
+            lock.lock();
+            try {
+                String sentNotice = "[Private to " + recipient + "] File sent: " + fileName;
+                commit = saveMessage(chatFileName, fileNotice);
+                attachments.announce(storedName, sender, recipient);
                 if (target != null) {
-                    target.sendMessage("[Private from " + sender + "] File received: " + fileName + " (downloaded)");
-                    target.sendDownloadCommand(FILE_DIR + "/" + uniqueFileName);
-
-                    ClientHandler senderHandler = clientHandlers.get(sender);
-                    if (senderHandler != null) {
-                        senderHandler.sendMessage("[Private to " + recipient + "] File sent: " + fileName);
-                    }
-                    saveMessage(getChatFileName(sender, recipient), fileNotice);
+                    target.send(sequenced(Frame.PRIVATE, chatFileName, sender,
+                            "[Private from " + sender + "] File received: " + fileName + " (downloaded)"));
+                    target.sendDownloadCommand(FILE_DIR + "/" + storedName);
+                } else {
+                    // the download line is not in the chat log, so a resumed session's replay never supersedes it
+                    offlineMessages.enqueue(recipient, chatFileName, messageLog.latestId(chatFileName),
+                            timestamp() + "[Private from " + sender + "] File received: " + fileName);
+                    offlineMessages.enqueue(recipient, "[DOWNLOAD]" + FILE_DIR + "/" + storedName);
+                    sentNotice += " (" + recipient + " is offline, delivered when they log in)";
                 }
+                if (senderHandler != null) {
+                    senderHandler.send(sequenced(Frame.PRIVATE, chatFileName, recipient, sentNotice));
+                }
+                conversationIndex.addPrivate(sender, recipient);
+            } catch (IOException e) {
+                if (senderHandler != null) {
+                    senderHandler.sendMessage("Could not queue " + fileName + " for " + recipient + ".");
+                }
+                e.printStackTrace();
+            } finally {
+                lock.unlock();
             }
+            if (commit != null) {
+                messageLog.awaitCommit(commit);
+            }
+        }
+
+        System.out.println("File received: " + fileName + " from " + sender);
+    }
+
+    private static ReentrantLock lockFor(String conversation) {
+        return conversationLocks[stripeOf(conversation)];
+    }
+
+    private static int stripeOf(String conversation) {
+        return Math.floorMod(conversation.hashCode(), conversationLocks.length);
+    }
+
+    // Live messages carry their log id, so a client that reconnects can say exactly where it stopped.
+    private static Frame sequenced(byte type, String file, String conversation, String text) {
+        try {
+            return new Frame(type, messageLog.latestId(file), conversation, text);
+        } catch (IOException e) {
+            return new Frame(type, text);
+        }
+    }
 
-            System.out.println("File received: " + fileName + " from " + sender);
+    private static String timestamp() {
+        return "[" + LocalTime.now().format(timestampFormatter) + "] ";
+    }
+
+    // Callers hold the conversation lock, so the latest id is the one just assigned.
+    private static CompletableFuture<Void> saveMessage(String filename, String message) {
+        Metrics.SaveMessageEvent event = new Metrics.SaveMessageEvent();
+        event.begin();
+        CompletableFuture<Void> commit = messageLog.append(filename, message);
+        try {
+            searchIndex.add(filename, messageLog.latestId(filename), message);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (event.shouldCommit()) {
+            event.file = filename;
+            event.bytes = message.length();
+            event.commit();
+        }
+        return commit;
+    }
+
+    private static Set<String> allLogFiles() {
+        Set<String> logFiles = new LinkedHashSet<>();
+        logFiles.add("public_chat.txt");
+        for (String room : rooms.names()) {
+            logFiles.add(Rooms.logFile(room));
+        }
+        for (String user : userStore.usernames()) {
+            for (String other : conversationIndex.conversationsOf(user)) {
+                logFiles.add(getChatFileName(user, other));
+            }
+        }
+        return logFiles;
+    }
+
+    private static void broadcastMessage(String sender, String message) {
+        Metrics.BroadcastEvent event = new Metrics.BroadcastEvent();
+        event.begin();
+        Metrics.publicMessages.increment();
+        CompletableFuture<Void> commit;
+        int recipients;
+        ReentrantLock lock = lockFor("public_chat.txt");
+        lock.lock();
+        try {
+            String timestamp = timestamp();
+            String formattedMessage = timestamp + sender + ": " + message;
+
+            commit = saveMessage("public_chat.txt", formattedMessage);
+            recipients = fanOut(sequenced(Frame.PUBLIC, "public_chat.txt", "public", formattedMessage));
+            bus.publish(new Frame(Frame.PUBLIC, formattedMessage));
+        } finally {
+            lock.unlock();
+        }
+        messageLog.awaitCommit(commit);
+        if (event.shouldCommit()) {
+            event.sender = sender;
+            event.recipients = recipients;
+            event.commit();
+        }
+    }
+
+    private static void privateMessage(String sender, String recipient, String message) {
+        Metrics.PrivateMessageEvent event = new Metrics.PrivateMessageEvent();
+        event.begin();
+        Metrics.privateMessages.increment();
+        String chatFileName = getChatFileName(sender, recipient);
+        String route = "unknown";
+        CompletableFuture<Void> commit = null;
+        ReentrantLock lock = lockFor(chatFileName);
+        lock.lock();
+        try {
+            ChatSession recipientHandler = clientHandlers.get(recipient);
+            String recipientNode = remoteSessions.get(recipient);
+            String timestamp = timestamp();
+            String formattedMessage = timestamp + "[Private from " + sender + "]: " + message;
+
+            if (recipientHandler == null && recipientNode != null && bus.send(recipientNode,
+                    new Frame(Frame.PRIVATE, recipient + "\n" + sender + "\n" + formattedMessage))) {
+                route = "remote";
+                commit = saveMessage(chatFileName, formattedMessage);
+                clientHandlers.get(sender).send(sequenced(Frame.PRIVATE, chatFileName, recipient,
+                        timestamp + "[Private to " + recipient + "]: " + message));
+                conversationIndex.addPrivate(sender, recipient);
+            } else if (recipientHandler != null) {
+                route = "local";
+                commit = saveMessage(chatFileName, formattedMessage);
+                recipientHandler.send(sequenced(Frame.PRIVATE, chatFileName, sender, formattedMessage));
+                ChatSession senderHandler = clientHandlers.get(sender);
+                senderHandler.send(sequenced(Frame.PRIVATE, chatFileName, recipient,
+                        timestamp + "[Private to " + recipient + "]: " + message));
+                conversationIndex.addPrivate(sender, recipient);
+            } else if (userStore.usernames().contains(recipient)) {
+                route = "offline";
+                commit = saveMessage(chatFileName, formattedMessage);
+                offlineMessages.enqueue(recipient, chatFileName, messageLog.latestId(chatFileName), formattedMessage);
+                // also where a message lands when the recipient's node could not take it
+                String delivery = recipientNode != null
+                        ? recipient + "'s server is not reachable right now, delivered when they next log in"
+                        : recipient + " is offline, delivered when they log in";
+                ChatSession senderHandler = clientHandlers.get(sender);
+                senderHandler.send(sequenced(Frame.PRIVATE, chatFileName, recipient,
+                        timestamp + "[Private to " + recipient + "]: " + message + " (" + delivery + ")"));
+                conversationIndex.addPrivate(sender, recipient);
+            } else {
+                ChatSession senderHandler = clientHandlers.get(sender);
+                senderHandler.sendMessage("User '" + recipient + "' not found.");
+            }
+        } catch (IOException e) {
+            clientHandlers.get(sender).sendMessage("Could not queue message for " + recipient + ".");
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        if (commit != null) {
+            messageLog.awaitCommit(commit);
+        }
+        if (event.shouldCommit()) {
+            event.sender = sender;
+            event.recipient = recipient;
+            event.route = route;
+            event.commit();
+        }
+    }
+
+    private static void joinRoom(ChatSession session, String room) {
+        room = room.startsWith("#") ? room.substring(1) : room;
+        if (!Rooms.isValidName(room)) {
+            session.sendMessage("Invalid room name. Use letters, digits, '-' or '_' (up to 32).");
+            return;
+        }
+        ReentrantLock lock = lockFor(Rooms.logFile(room));
+        lock.lock();
+        try {
+            if (!rooms.join(room, session.getUsername())) {
+                session.sendMessage("You are already in #" + room + ".");
+                return;
+            }
+            roomFanOut(room, new Frame(Frame.ROOM, "[#" + room + "] " + session.getUsername() + " joined the room."));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void leaveRoom(ChatSession session, String room) {
+        room = room.startsWith("#") ? room.substring(1) : room;
+        ReentrantLock lock = lockFor(Rooms.logFile(room));
+        lock.lock();
+        try {
+            if (!rooms.leave(room, session.getUsername())) {
+                session.sendMessage("You are not in #" + room + ".");
+                return;
+            }
+            session.sendMessage("You left #" + room + ".");
+            roomFanOut(room, new Frame(Frame.ROOM, "[#" + room + "] " + session.getUsername() + " left the room."));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void roomMessage(ChatSession session, String room, String message) {
+        room = room.startsWith("#") ? room.substring(1) : room;
+        String sender = session.getUsername();
+        if (!rooms.members(room).contains(sender)) {
+            session.sendMessage("You are not in #" + room + ". Use /join " + room + " first.");
+            return;
+        }
+        Metrics.roomMessages.increment();
+        CompletableFuture<Void> commit;
+        String roomFile = Rooms.logFile(room);
+        ReentrantLock lock = lockFor(roomFile);
+        lock.lock();
+        try {
+            String formattedMessage = timestamp() + "[#" + room + "] " + sender + ": " + message;
+            commit = saveMessage(roomFile, formattedMessage);
+            roomFanOut(room, sequenced(Frame.ROOM, roomFile, "#" + room, formattedMessage));
+        } finally {
+            lock.unlock();
+        }
+        messageLog.awaitCommit(commit);
+    }
+
+    // Only members are visited, so a room message costs O(members) however many users are connected.
+    private static void roomFanOut(String room, Frame frame) {
+        for (String member : rooms.members(room)) {
+            ChatSession client = clientHandlers.get(member);
+            if (client != null) {
+                client.send(frame);
+            }
+        }
+    }
+
+    private static String getChatFileName(String user1, String user2) {
+        List<String> sortedUsers = Arrays.asList(user1, user2);
+        Collections.sort(sortedUsers);
+        return sortedUsers.get(0) + "_" + sortedUsers.get(1) + ".txt";
+    }
+
+    // A client may switch to binary frames with "/binary" or "/binary deflate" before logging in.
+    static Frame.Format negotiate(ChatSession session, String line) {
+        if (!line.equals(Frame.NEGOTIATE) && !line.equals(Frame.NEGOTIATE + " deflate")) {
+            return null;
+        }
+        Frame.Format format = line.endsWith("deflate") ? Frame.Format.DEFLATE : Frame.Format.BINARY;
+        session.sendMessage("OK " + line.substring(1));
+        session.getOutboundQueue().setFormat(format);
+        return format;
+    }
+
+    // Password hashing runs on the user store's pool; the future completes with the username, or null on failure.
+    static CompletableFuture<String> authenticate(ChatSession session, Frame frame) {
+        if (frame.type != Frame.AUTH) {
+            session.send(new Frame(Frame.AUTH, "Invalid command. Use /login or /register."));
+            return CompletableFuture.completedFuture(null);
+        }
+        String[] credentials = frame.text.split("\n", 3);
+
+        if (credentials.length == 2 && credentials[0].equalsIgnoreCase("resume")) {
+            return CompletableFuture.completedFuture(resume(session, credentials[1], ""));
+        } else if (credentials.length < 3) {
+            session.send(new Frame(Frame.AUTH, "Invalid input. Please try again."));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String command = credentials[0];
+        String usernameInput = credentials[1];
+        String passwordInput = credentials[2];
+
+        long started = System.nanoTime();
+        CompletableFuture<String> result;
+        if (command.equalsIgnoreCase("login")) {
+            result = userStore.verify(usernameInput, passwordInput).thenApply(valid -> {
+                if (!valid) {
+                    session.send(new Frame(Frame.AUTH, "Invalid username or password."));
+                    return null;
+                }
+                clientHandlers.put(usernameInput, session);
+                session.send(new Frame(Frame.AUTH, "Login successful. Welcome, " + usernameInput + "!"));
+                return usernameInput;
+            });
+        } else if (command.equalsIgnoreCase("register")) {
+            if (!UserStore.isValidUsername(usernameInput)) {
+                session.send(new Frame(Frame.AUTH, "Invalid username. Use letters, digits or '-' (up to 32);"
+                        + " 'public', 'ALL' and 'room' are reserved."));
+                return CompletableFuture.completedFuture(null);
+            }
+            result = userStore.register(usernameInput, passwordInput).thenApply(created -> {
+                if (!created) {
+                    session.send(new Frame(Frame.AUTH, "Username already exists."));
+                    return null;
+                }
+                bus.publish(new Frame(Frame.AUTH, userStore.record(usernameInput)));
+                clientHandlers.put(usernameInput, session);
+                session.send(new Frame(Frame.AUTH, "Registration successful. Welcome, " + usernameInput + "!"));
+                return usernameInput;
+            });
+        } else if (command.equalsIgnoreCase("resume")) {
+            return CompletableFuture.completedFuture(resume(session, usernameInput, passwordInput));
+        } else {
+            session.send(new Frame(Frame.AUTH, "Invalid command. Use /login or /register."));
+            return CompletableFuture.completedFuture(null);
+        }
+        return result.exceptionally(e -> {
+            session.send(new Frame(Frame.AUTH, e.getCause() instanceof RejectedExecutionException
+                    ? "Server busy. Please try again." : "Authentication failed. Please try again."));
+            return null;
+        }).whenComplete((user, e) -> {
+            Metrics.authTime.recordSince(started);
+            if (user == null) {
+                Metrics.authFailures.increment();
+            }
+        });
+    }
+
+    static boolean handleFrame(ChatSession session, Frame frame) {
+        String username = session.getUsername();
+        if (!Frame.fits(frame.text, Frame.MAX_MESSAGE_BYTES)) {
+            session.sendMessage("Message too long.");
+            return true;
+        }
+        switch (frame.type) {
+            case Frame.PUBLIC:
+                broadcastMessage(username, singleLine(frame.text));
+                break;
+            case Frame.PRIVATE:
+                String[] tokens = frame.text.split("\n", 2);
+                if (tokens.length == 2 && !tokens[0].isEmpty() && !tokens[1].isEmpty()) {
+                    privateMessage(username, tokens[0], singleLine(tokens[1]));
+                } else {
+                    session.sendMessage("Invalid private message format. Use /private <username> <message>");
+                }
+                break;
+            case Frame.ROOM:
+                String[] roomTokens = frame.text.split("\n", 2);
+                if (roomTokens.length == 2 && !roomTokens[1].isEmpty()) {
+                    roomMessage(session, roomTokens[0], singleLine(roomTokens[1]));
+                } else {
+                    session.sendMessage("Invalid room message format. Use /room <name> <message>");
+                }
+                break;
+            case Frame.HISTORY:
+                if (frame.text.isBlank()) {
+                    displayChatHistory(session);
+                } else {
+                    displayHistoryPage(session, frame.text);
+                }
+                break;
+            case Frame.COMMAND:
+                return handleCommand(session, frame.text);
+            case Frame.AUTH:
+                session.send(new Frame(Frame.AUTH, "Already logged in as " + username + "."));
+                break;
+            default:
+                session.sendMessage("Unsupported frame type " + frame.type + ".");
+        }
+        return true;
+    }
+
+    private static boolean handleCommand(ChatSession session, String command) {
+        if (command.equalsIgnoreCase("/exit")) {
+            sessionTokens.revoke(session);
+            session.sendMessage("You have left the chat.");
+            return false;
+        } else if (command.startsWith("/private")) {
+            session.sendMessage("Invalid private message format. Use /private <username> <message>");
+        } else if (command.equalsIgnoreCase("/conversations")) {
+            listConversations(session);
+        } else if (command.startsWith("/join ")) {
+            joinRoom(session, command.substring(6).trim());
+        } else if (command.startsWith("/leave ")) {
+            leaveRoom(session, command.substring(7).trim());
+        } else if (command.equalsIgnoreCase("/rooms")) {
+            List<String> joined = new ArrayList<>(rooms.roomsOf(session.getUsername()));
+            Collections.sort(joined);
+            session.sendMessage(joined.isEmpty() ? "You have not joined any rooms. Use /join <room>."
+                    : "Your rooms: #" + String.join(", #", joined));
+        } else if (command.startsWith("/room")) {
+            session.sendMessage("Invalid room message format. Use /room <name> <message>");
+        } else if (command.startsWith("/search ")) {
+            search(session, command.substring(8));
+        } else if (command.equals("/users") || command.startsWith("/users ")) {
+            session.send(presence.snapshot());
+        } else if (command.startsWith("/ack ")) {
+            try {
+                offlineMessages.acknowledge(session, Long.parseLong(command.substring(5).trim()));
+            } catch (NumberFormatException e) {
+                session.sendMessage("Invalid acknowledgement.");
+            }
+        } else {
+            broadcastMessage(session.getUsername(), singleLine(command));
+        }
+        return true;
+    }
+
+    // "/resume <token> [<conversation> <last seen id>]...". The session goes live in sessionJoined, after the replay.
+    private static String resume(ChatSession session, String token, String cursors) {
+        SessionTokens.Resumed resumed = sessionTokens.take(token);
+        if (resumed == null) {
+            session.send(new Frame(Frame.AUTH, "Session expired. Please log in again."));
+            return null;
+        }
+        Map<String, Long> seen = new HashMap<>();
+        String[] tokens = cursors.trim().split("\\s+");
+        for (int i = 0; i + 1 < tokens.length; i += 2) {
+            try {
+                seen.put(tokens[i], Long.parseLong(tokens[i + 1]));
+            } catch (NumberFormatException e) {
+                // ignore the pair; the snapshot taken at disconnect covers that conversation
+            }
+        }
+
+        Map<String, Long> replayFrom = new HashMap<>();
+        for (String conversation : conversationsOf(resumed.username)) {
+            Long from = seen.get(conversation);
+            if (from == null) {
+                from = resumed.latestAtClose.get(conversation);
+            }
+            if (from == null && resumed.closed) {
+                from = 0L;
+            }
+            if (from != null) {
+                replayFrom.put(conversation, from);
+            }
+        }
+        pendingReplays.put(session, replayFrom);
+        session.send(new Frame(Frame.AUTH, "Session resumed. Welcome back, " + resumed.username + "!"));
+        return resumed.username;
+    }
+
+    private static List<String> conversationsOf(String username) {
+        List<String> conversations = new ArrayList<>();
+        conversations.add("public");
+        for (String room : rooms.roomsOf(username)) {
+            conversations.add("#" + room);
+        }
+        conversations.addAll(conversationIndex.conversationsOf(username));
+        return conversations;
     }
 
-    private static void loadUsers() {
-        try (BufferedReader reader = new BufferedReader(new FileReader("users.txt"))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] data = line.split(":");
-                if (data.length == 2) {
-                    users.put(data[0], data[1]);
+    private static String conversationFile(String username, String conversation) {
+        if (conversation.equals("public")) {
+            return "public_chat.txt";
+        } else if (conversation.startsWith("#")) {
+            return Rooms.logFile(conversation.substring(1));
+        }
+        return getChatFileName(username, conversation);
+    }
+
+    // Holding the conversation locks while replaying and registering the session means no message is both replayed
+    // and delivered live, and none falls between the two. Returns, per replayed log file, the last id left out.
+    private static Map<String, Long> replayMissed(ChatSession session, Map<String, Long> replayFrom) {
+        String username = session.getUsername();
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (String conversation : replayFrom.keySet()) {
+            stripes.add(stripeOf(conversationFile(username, conversation)));
+        }
+        for (int stripe : stripes) {
+            conversationLocks[stripe].lock();
+        }
+        Map<String, Long> replayedAfter = new HashMap<>();
+        try {
+            for (Map.Entry<String, Long> entry : replayFrom.entrySet()) {
+                long after = replayConversation(session, entry.getKey(), entry.getValue());
+                if (after >= 0) {
+                    replayedAfter.put(conversationFile(username, entry.getKey()), after);
                 }
             }
-            System.out.println("User data loaded.");
+            clientHandlers.put(username, session);
+        } finally {
+            for (int stripe : stripes.descendingSet()) {
+                conversationLocks[stripe].unlock();
+            }
+        }
+        return replayedAfter;
+    }
+
+    // Returns the id just before the first replayed message, or -1 when nothing was replayed.
+    private static long replayConversation(ChatSession session, String conversation, long lastSeen) {
+        String file = conversationFile(session.getUsername(), conversation);
+        byte type = conversation.equals("public") ? Frame.PUBLIC
+                : conversation.startsWith("#") ? Frame.ROOM : Frame.PRIVATE;
+        try {
+            long missed = messageLog.latestId(file) - lastSeen;
+            if (missed <= 0) {
+                return -1;
+            }
+            MessageLog.HistoryPage page = messageLog.readPage(file, 0, (int) Math.min(missed, HISTORY_MAX_PAGE_SIZE));
+            if (missed > page.lines.size()) {
+                session.sendMessage((missed - page.lines.size()) + " more missed messages in " + conversation
+                        + ": /history " + conversation + " before " + page.firstId);
+            }
+            long id = page.firstId;
+            for (String line : page.lines) {
+                // lines logged before messages were capped may not fit in a frame
+                session.send(new Frame(type, id++, conversation, Frame.clip(line, Frame.MAX_MESSAGE_BYTES)));
+            }
+            return page.firstId - 1;
         } catch (IOException e) {
-            System.out.println("No user data found. Starting fresh.");
+            session.sendMessage("Error replaying " + conversation + ".");
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    // Binary frames may carry line breaks; logs and text clients are line based, so they become U+2028.
+    private static String singleLine(String message) {
+        return message.indexOf('\n') < 0 ? message : message.replace("\r\n", "\n").replace('\n', '\u2028');
+    }
+
+    static void sessionJoined(ChatSession session) {
+        Map<String, Long> replayFrom = pendingReplays.remove(session);
+        Map<String, Long> replayedAfter = replayFrom != null ? replayMissed(session, replayFrom) : Map.of();
+        session.sendMessage("[SESSION]" + sessionTokens.issue(session));
+        session.send(presence.snapshot());
+        presence.joined(session.getUsername());
+        // queued messages from conversations the client had no cursor for, file downloads and unacknowledged pages
+        // still need delivering; only copies of what the replay just sent are dropped
+        if (!replayedAfter.isEmpty()) {
+            offlineMessages.dropReplayed(session.getUsername(), replayedAfter);
         }
+        offlineMessages.deliverNext(session);
+        // other nodes forward their offline queues on seeing this, after the local page is in flight
+        bus.publish(new Frame(Frame.PRESENCE, "joined\n" + session.getUsername()));
     }
 
-    private static void saveUsers() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter("users.txt"))) {
-            for (Map.Entry<String, String> entry : users.entrySet()) {
-                writer.println(entry.getKey() + ":" + entry.getValue());
+    static void sessionClosed(ChatSession session) {
+        String username = session.getUsername();
+        if (username != null) {
+            if (sessionTokens.isTracked(session)) {
+                sessionTokens.park(session, latestIds(username));
+            }
+            presenceDrops.remove(session);
+            pendingReplays.remove(session);
+            if (clientHandlers.remove(username, session)) {
+                presence.left(username);
+                bus.publish(new Frame(Frame.PRESENCE, "left\n" + username));
+            }
+        }
+    }
+
+    private static Map<String, Long> latestIds(String username) {
+        Map<String, Long> latest = new HashMap<>();
+        for (String conversation : conversationsOf(username)) {
+            try {
+                latest.put(conversation, messageLog.latestId(conversationFile(username, conversation)));
+            } catch (IOException e) {
+                e.printStackTrace();
             }
+        }
+        return latest;
+    }
+
+    private static void displayChatHistory(ChatSession session) {
+        String username = session.getUsername();
+        try {
+            List<String> history = new ArrayList<>();
+            history.add("Public Chat History:");
+            history.addAll(messageLog.readPage("public_chat.txt", 0, HISTORY_PAGE_SIZE).lines);
+            history.add("---- End of Public Chat History ----");
+
+            history.add("Your Private Chat History:");
+            for (String otherUser : conversationIndex.conversationsOf(username)) {
+                history.add("Chat with " + otherUser + ":");
+                String chatFile = getChatFileName(username, otherUser);
+                history.addAll(messageLog.readPage(chatFile, 0, HISTORY_PAGE_SIZE).lines);
+            }
+            history.add("---- End of Private Chat History ----");
+            history.add("Use /history <public|username|#room> [before <id>] [limit <n>] for older messages.");
+            sendAll(session, Frame.pack(Frame.HISTORY, history));
         } catch (IOException e) {
+            session.sendMessage("Error reading chat history.");
             e.printStackTrace();
         }
     }
 
-    private static synchronized void saveMessage(String filename, String message) {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(filename, true))) {
-            writer.println(message);
+    private static void sendAll(ChatSession session, List<Frame> frames) {
+        for (Frame frame : frames) {
+            session.send(frame);
+        }
+    }
+
+    private static void listConversations(ChatSession session) {
+        List<String> conversations = new ArrayList<>(conversationIndex.conversationsOf(session.getUsername()));
+        for (String room : rooms.roomsOf(session.getUsername())) {
+            conversations.add("#" + room);
+        }
+        Collections.sort(conversations);
+        session.sendMessage("Your conversations: public" + (conversations.isEmpty() ? "" : ", ")
+                + String.join(", ", conversations));
+    }
+
+    private static void displayHistoryPage(ChatSession session, String arguments) {
+        String[] tokens = arguments.trim().split("\\s+");
+        String conversation = tokens[0];
+        long beforeId = 0;
+        int limit = HISTORY_PAGE_SIZE;
+        try {
+            for (int i = 1; i + 1 < tokens.length; i += 2) {
+                if (tokens[i].equalsIgnoreCase("before")) {
+                    beforeId = Long.parseLong(tokens[i + 1]);
+                } else if (tokens[i].equalsIgnoreCase("limit")) {
+                    limit = Math.max(1, Math.min(HISTORY_MAX_PAGE_SIZE, Integer.parseInt(tokens[i + 1])));
+                }
+            }
+        } catch (NumberFormatException e) {
+            session.sendMessage("Invalid history request. Use /history <public|username|#room> [before <id>] [limit <n>]");
+            return;
+        }
+
+        String chatFile;
+        if (conversation.equalsIgnoreCase("public")) {
+            chatFile = "public_chat.txt";
+        } else if (conversation.startsWith("#")
+                && rooms.members(conversation.substring(1)).contains(session.getUsername())) {
+            chatFile = Rooms.logFile(conversation.substring(1));
+        } else if (conversationIndex.conversationsOf(session.getUsername()).contains(conversation)) {
+            chatFile = getChatFileName(session.getUsername(), conversation);
+        } else {
+            session.sendMessage("Unknown conversation '" + conversation + "'.");
+            return;
+        }
+
+        try {
+            MessageLog.HistoryPage page = messageLog.readPage(chatFile, beforeId, limit);
+            long lastId = page.firstId + page.lines.size() - 1;
+            List<String> history = new ArrayList<>();
+            history.add("History of " + conversation + " (messages " + page.firstId + "-" + lastId
+                    + " of " + page.total + "):");
+            long id = page.firstId;
+            for (String line : page.lines) {
+                history.add("#" + id++ + " " + line);
+            }
+            if (page.firstId > 1 && !page.lines.isEmpty()) {
+                history.add("---- More: /history " + conversation + " before " + page.firstId + " ----");
+            } else {
+                history.add("---- End of History ----");
+            }
+            sendAll(session, Frame.pack(Frame.HISTORY, history));
         } catch (IOException e) {
+            session.sendMessage("Error reading chat history.");
             e.printStackTrace();
         }
     }
 
-    private static synchronized void broadcastMessage(String sender, String message) {
-        String timestamp = "[" + timestampFormatter.format(new Date()) + "] ";
-        String formattedMessage = timestamp + sender + ": " + message;
+    // "/search <terms> [in <conversation>] [before <n>]", limited to the conversations the user belongs to.
+    private static void search(ChatSession session, String arguments) {
+        String username = session.getUsername();
+        StringJoiner query = new StringJoiner(" ");
+        String within = null;
+        long before = Long.MAX_VALUE;
+        String[] tokens = arguments.trim().split("\\s+");
+        try {
+            for (int i = 0; i < tokens.length; i++) {
+                if (tokens[i].equalsIgnoreCase("in") && i + 1 < tokens.length) {
+                    within = tokens[++i];
+                } else if (tokens[i].equalsIgnoreCase("before") && i + 1 < tokens.length) {
+                    before = Long.parseLong(tokens[++i]);
+                } else {
+                    query.add(tokens[i]);
+                }
+            }
+        } catch (NumberFormatException e) {
+            session.sendMessage("Invalid search. Use /search <terms> [in <public|username|#room>] [before <n>]");
+            return;
+        }
 
-        saveMessage("public_chat.txt", formattedMessage);
-        for (ClientHandler client : clientHandlers.values()) {
-            client.sendMessage(formattedMessage);
+        Map<String, String> conversationsByFile = new HashMap<>();
+        for (String conversation : conversationsOf(username)) {
+            if (within == null || within.equalsIgnoreCase(conversation)) {
+                conversationsByFile.put(conversationFile(username, conversation), conversation);
+            }
+        }
+        if (conversationsByFile.isEmpty()) {
+            session.sendMessage("Unknown conversation '" + within + "'.");
+            return;
+        }
+
+        try {
+            List<SearchIndex.Hit> hits = searchIndex.search(query.toString(), conversationsByFile.keySet(),
+                    before, SEARCH_PAGE_SIZE + 1);
+            if (hits.isEmpty()) {
+                session.sendMessage("No messages found for '" + query + "'.");
+                return;
+            }
+            List<String> results = new ArrayList<>();
+            results.add("Search results for '" + query + "':");
+            for (SearchIndex.Hit hit : hits.subList(0, Math.min(hits.size(), SEARCH_PAGE_SIZE))) {
+                List<String> lines = messageLog.readPage(hit.file, hit.id + 1, 1).lines;
+                if (!lines.isEmpty()) {
+                    results.add("[" + conversationsByFile.get(hit.file) + " #" + hit.id + "] " + lines.get(0));
+                }
+            }
+            if (hits.size() > SEARCH_PAGE_SIZE) {
+                results.add("---- More: /search " + query + (within != null ? " in " + within : "")
+                        + " before " + hits.get(SEARCH_PAGE_SIZE - 1).docNo + " ----");
+            } else {
+                results.add("---- End of results ----");
+            }
+            sendAll(session, Frame.pack(Frame.HISTORY, results));
+        } catch (IOException e) {
+            session.sendMessage("Error searching chat history.");
+            e.printStackTrace();
         }
     }
 
-    private static synchronized void privateMessage(String sender, String recipient, String message) {
-        ClientHandler recipientHandler = clientHandlers.get(recipient);
-        String timestamp = "[" + timestampFormatter.format(new Date()) + "] ";
-        String formattedMessage = timestamp + "[Private from " + sender + "]: " + message;
-        String chatFileName = getChatFileName(sender, recipient);
+    static void slowConsumer(ChatSession session) {
+        System.out.println("Disconnecting slow consumer " + session.getUsername()
+                + " (outbound queue depth " + session.getOutboundQueue().depth() + ")");
+        session.close();
+    }
+
+    private static void reportOutboundQueues() {
+        for (ChatSession client : clientHandlers.values()) {
+            OutboundQueue queue = client.getOutboundQueue();
+            if (queue.depth() > 0 || queue.dropped() > 0) {
+                System.out.println("Outbound queue " + client.getUsername() + ": depth=" + queue.depth()
+                        + " high=" + queue.highWatermark() + " sent=" + queue.enqueued()
+                        + " dropped=" + queue.dropped() + " policy=" + queue.policy());
+            }
+        }
+    }
+
+    private static void registerGauges() {
+        Metrics.gauge("chat_sessions_active", "Sessions logged in on this node", clientHandlers::size);
+        Metrics.gauge("chat_sessions_remote", "Sessions logged in on other cluster nodes", remoteSessions::size);
+        Metrics.gauge("chat_outbound_backlog_messages", "Frames waiting in all outbound queues", () -> {
+            long backlog = 0;
+            for (ChatSession client : clientHandlers.values()) {
+                backlog += client.getOutboundQueue().depth();
+            }
+            return backlog;
+        });
+        Metrics.gauge("chat_outbound_backlog_max", "Deepest outbound queue", () -> {
+            long deepest = 0;
+            for (ChatSession client : clientHandlers.values()) {
+                deepest = Math.max(deepest, client.getOutboundQueue().depth());
+            }
+            return deepest;
+        });
+        Metrics.gauge("chat_message_log_queue", "Appends waiting for the message log thread", messageLog::queueDepth);
+    }
 
-        if (recipientHandler != null) {
-            recipientHandler.sendMessage(formattedMessage);
-            ClientHandler senderHandler = clientHandlers.get(sender);
-            senderHandler.sendMessage(timestamp + "[Private to " + recipient + "]: " + message);
+    // Sessions that dropped frames since the last delta may have lost one, so they get a snapshot instead.
+    private static void flushPresence() {
+        List<Frame> deltas = presence.flush();
+        if (deltas.isEmpty()) {
+            return;
+        }
+        Frame snapshot = null;
+        for (ChatSession client : clientHandlers.values()) {
+            long dropped = client.getOutboundQueue().dropped();
+            Long seen = presenceDrops.put(client, dropped);
+            if (seen != null && seen != dropped) {
+                if (snapshot == null) {
+                    snapshot = presence.snapshot();
+                }
+                client.send(snapshot);
+            } else {
+                for (Frame delta : deltas) {
+                    client.send(delta);
+                }
+            }
+        }
+    }
+
+    private static int fanOut(Frame frame) {
+        long started = System.nanoTime();
+        int recipients = 0;
+        for (ChatSession client : clientHandlers.values()) {
+            client.send(frame);
+            recipients++;
+        }
+        Metrics.fanOutTime.recordSince(started);
+        Metrics.fanOutDeliveries.add(recipients);
+        return recipients;
+    }
+
+    // Events from other nodes are delivered to local sessions and stored here, so every node keeps a full public log.
+    static class ClusterListener implements MessageBus.Listener {
+        @Override
+        public void onEvent(String node, Frame event) {
+            switch (event.type) {
+                case Frame.PUBLIC:
+                    remoteBroadcast(event.text);
+                    break;
+                case Frame.PRIVATE:
+                    String[] parts = event.text.split("\n", 3);
+                    if (parts.length == 3) {
+                        remotePrivateMessage(parts[1], parts[0], parts[2]);
+                    }
+                    break;
+                case Frame.PRESENCE:
+                    String[] presence = event.text.split("\n", 2);
+                    if (presence.length == 2) {
+                        remotePresence(node, presence[0], presence[1]);
+                    }
+                    break;
+                case Frame.OFFLINE:
+                    String[] queued = event.text.split("\n", 2);
+                    if (queued.length == 2 && UserStore.isValidUsername(queued[0])) {
+                        remoteOffline(queued[0], queued[1]);
+                    }
+                    break;
+                case Frame.AUTH:
+                    try {
+                        userStore.addRecord(event.text);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                    break;
+                default:
+                    System.out.println("Ignoring cluster event of type " + event.type + " from " + node);
+            }
+        }
+
+        // A node that (re)connects learns who is online here and catches up on registrations it missed.
+        @Override
+        public Iterable<Frame> snapshot() {
+            return () -> Stream.concat(
+                    userStore.usernames().stream().map(user -> new Frame(Frame.AUTH, userStore.record(user))),
+                    clientHandlers.keySet().stream().map(user -> new Frame(Frame.PRESENCE, "online\n" + user)))
+                    .iterator();
+        }
+
+        @Override
+        public void onPeerDown(String node) {
+            for (Map.Entry<String, String> session : remoteSessions.entrySet()) {
+                if (session.getValue().equals(node) && remoteSessions.remove(session.getKey(), node)) {
+                    presence.left(session.getKey());
+                }
+            }
+        }
+    }
+
+    private static void remoteBroadcast(String formattedMessage) {
+        ReentrantLock lock = lockFor("public_chat.txt");
+        lock.lock();
+        try {
+            saveMessage("public_chat.txt", formattedMessage);
+            fanOut(sequenced(Frame.PUBLIC, "public_chat.txt", "public", formattedMessage));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void remotePrivateMessage(String sender, String recipient, String formattedMessage) {
+        String chatFileName = getChatFileName(sender, recipient);
+        ReentrantLock lock = lockFor(chatFileName);
+        lock.lock();
+        try {
             saveMessage(chatFileName, formattedMessage);
-        } else {
-            ClientHandler senderHandler = clientHandlers.get(sender);
-            senderHandler.sendMessage("User '" + recipient + "' not found or offline.");
+            ChatSession recipientHandler = clientHandlers.get(recipient);
+            if (recipientHandler != null) {
+                recipientHandler.send(sequenced(Frame.PRIVATE, chatFileName, sender, formattedMessage));
+            } else {
+                offlineMessages.enqueue(recipient, chatFileName, messageLog.latestId(chatFileName), formattedMessage);
+            }
+            conversationIndex.addPrivate(sender, recipient);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
     }
 
-    private static String getChatFileName(String user1, String user2) {
-        List<String> sortedUsers = Arrays.asList(user1, user2);
-        Collections.sort(sortedUsers);
-        return sortedUsers.get(0) + "_" + sortedUsers.get(1) + ".txt";
+    // Lines queued for a user on another node, which sends them on when the user logs in here.
+    private static void remoteOffline(String user, String lines) {
+        try {
+            offlineMessages.enqueue(user, lines);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        ChatSession session = clientHandlers.get(user);
+        if (session != null) {
+            offlineMessages.deliverIfIdle(session);
+        }
+    }
+
+    // An offline queue stays on the node that took the messages until the user shows up on another node. Queued
+    // lines lose their chat file reference there, as the other node's logs have different ids.
+    private static void forwardOffline(String user, String node) {
+        if (clientHandlers.containsKey(user)) {
+            return;
+        }
+        String header = user + "\n";
+        offlineMessages.forward(user, Frame.MAX_PAYLOAD_BYTES - Frame.utf8Length(header),
+                page -> bus.send(node, new Frame(Frame.OFFLINE, header + page)));
+    }
+
+    private static void remotePresence(String node, String action, String user) {
+        switch (action) {
+            case "joined":
+            case "online":
+                remoteSessions.put(user, node);
+                presence.joined(user);
+                forwardOffline(user, node);
+                break;
+            case "left":
+                if (remoteSessions.remove(user, node) && !clientHandlers.containsKey(user)) {
+                    presence.left(user);
+                }
+                break;
+            default:
+                break;
+        }
     }
 
-    static class ClientHandler implements Runnable {
+    static class ClientHandler implements Runnable, ChatSession {
+        private static final int WRITE_BATCH = 256;
+
+        private final SocketChannel channel;
         private final Socket socket;
-        private PrintWriter out;
-        private BufferedReader in;
-        private String username;
+        private final OutboundQueue outbound = new OutboundQueue();
+        private DataInputStream in;
+        private boolean binary;
+        private volatile String username;
 
-        public ClientHandler(Socket socket) {
-            this.socket = socket;
+        public ClientHandler(SocketChannel channel) {
+            this.channel = channel;
+            this.socket = channel.socket();
         }
 
         @Override
         public void run() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                startWorker(this::writeMessages);
 
                 if (!authenticate()) {
-                    socket.close();
                     return;
                 }
 
-                sendUserStatus(username + " joined the chat.");
+                sessionJoined(this);
 
-                String message;
-                while ((message = in.readLine()) != null) {
-                    if (message.equalsIgnoreCase("/exit")) {
-                        out.println("You have left the chat.");
+                Frame frame;
+                while ((frame = readFrame()) != null) {
+                    if (!handleFrame(this, frame)) {
                         break;
-                    } else if (message.startsWith("/private")) {
-                        String[] tokens = message.split(" ", 3);
-                        if (tokens.length >= 3) {
-                            String recipient = tokens[1];
-                            String privateMessage = tokens[2];
-                            privateMessage(username, recipient, privateMessage);
-                        } else {
-                            out.println("Invalid private message format. Use /private <username> <message>");
-                        }
-                    } else if (message.equalsIgnoreCase("/history")) {
-                        displayChatHistory();
-                    } else {
-                        broadcastMessage(username, message);
                     }
                 }
             } catch (IOException e) {
                 System.out.println("Error: " + e.getMessage());
             } finally {
-                if (username != null) {
-                    clientHandlers.remove(username);
-                    sendUserStatus(username + " left the chat.");
-                }
+                outbound.close();
+                sessionClosed(this);
             }
         }
 
-        private void displayChatHistory() {
+        private void writeMessages() {
             try {
-                out.println("Public Chat History:");
-                try (BufferedReader reader = new BufferedReader(new FileReader("public_chat.txt"))) {
-                    String line;
-                    while ((line = reader.readLine()) != null) {
-                        out.println(line);
+                List<ByteBuffer> batch;
+                while (!(batch = outbound.take(WRITE_BATCH)).isEmpty()) {
+                    ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+                    while (buffers[buffers.length - 1].hasRemaining()) {
+                        channel.write(buffers);
                     }
                 }
-                out.println("---- End of Public Chat History ----");
-
-                out.println("Your Private Chat History:");
-                for (String otherUser : users.keySet()) {
-                    if (!otherUser.equals(username)) {
-                        String chatFile = getChatFileName(username, otherUser);
-                        File file = new File(chatFile);
-                        if (file.exists()) {
-                            out.println("Chat with " + otherUser + ":");
-                            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                                String line;
-                                while ((line = reader.readLine()) != null) {
-                                    out.println(line);
-                                }
-                            }
-                        }
-                    }
-                }
-                out.println("---- End of Private Chat History ----");
             } catch (IOException e) {
-                out.println("Error reading chat history.");
-                e.printStackTrace();
+                System.out.println("Error: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                outbound.close();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
 
         private boolean authenticate() throws IOException {
             while (true) {
-                String[] credentials = in.readLine().split(" ", 3);
-
-                if (credentials.length < 3) {
-                    out.println("Invalid input. Please try again.");
-                    continue;
-                }
-
-                String command = credentials[0];
-                String usernameInput = credentials[1];
-                String passwordInput = credentials[2];
-
-                if (command.equalsIgnoreCase("/login")) {
-                    if (users.containsKey(usernameInput) && users.get(usernameInput).equals(passwordInput)) {
-                        this.username = usernameInput;
-                        clientHandlers.put(username, this);
-                        out.println("Login successful. Welcome, " + username + "!");
-                        return true;
-                    } else {
-                        out.println("Invalid username or password.");
-                    }
-                } else if (command.equalsIgnoreCase("/register")) {
-                    if (users.containsKey(usernameInput)) {
-                        out.println("Username already exists.");
-                    } else {
-                        users.put(usernameInput, passwordInput);
-                        saveUsers();
-                        this.username = usernameInput;
-                        clientHandlers.put(username, this);
-                        out.println("Registration successful. Welcome, " + username + "!");
-                        return true;
-                    }
+                Frame frame;
+                if (binary) {
+                    frame = readFrame();
                 } else {
-                    out.println("Invalid command. Use /login or /register.");
+                    String line = Frame.readLine(in);
+                    if (line != null && negotiate(this, line) != null) {
+                        binary = true;
+                        continue;
+                    }
+                    frame = line != null ? Frame.fromLine(line) : null;
+                }
+                if (frame == null) {
+                    return false;
+                }
+                username = ChatServer.authenticate(this, frame).join();
+                if (username != null) {
+                    return true;
                 }
             }
         }
 
-        private void sendMessage(String message) {
-            out.println(message);
+        private Frame readFrame() throws IOException {
+            if (!binary) {
+                String line = Frame.readLine(in);
+                return line != null ? Frame.fromLine(line) : null;
+            }
+            try {
+                return Frame.read(in);
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (!outbound.offer(frame)) {
+                slowConsumer(this);
+            }
         }
 
-        private void sendDownloadCommand(String filePath) {
-            out.println("[DOWNLOAD]" + filePath);
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
         }
 
-        private void sendUserStatus(String statusMessage) {
-            for (ClientHandler client : clientHandlers.values()) {
-                client.sendMessage(statusMessage);
+        @Override
+        public void close() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
             }
         }
     }
-}
\ No newline at end of file
+}
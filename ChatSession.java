@@ -0,0 +1,17 @@
+interface ChatSession {
+    String getUsername();
+
+    void send(Frame frame);
+
+    OutboundQueue getOutboundQueue();
+
+    void close();
+
+    default void sendMessage(String message) {
+        send(new Frame(Frame.TEXT, message));
+    }
+
+    default void sendDownloadCommand(String filePath) {
+        send(new Frame(Frame.FILE, filePath));
+    }
+}
@@ -0,0 +1,191 @@
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultCaret;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// The chat area shows a window of at most WINDOW_LINES lines out of the newest RETAINED_LINES. Any thread may add
+// lines; they are queued and added on the EDT in one document edit per flush. Scrolling to the top or bottom of the
+// window pages older or newer lines in and drops as many from the other end.
+class ChatTranscript {
+    private static final int WINDOW_LINES = Math.max(10, Integer.getInteger("chat.gui.windowLines", 1000));
+    private static final int RETAINED_LINES = Math.max(WINDOW_LINES,
+            Integer.getInteger("chat.gui.retainedLines", 100_000));
+    private static final int PAGE_LINES = Math.max(1, WINDOW_LINES / 5);
+    private static final int FLUSH_MILLIS = 40;
+
+    private final JTextArea area;
+    private final JScrollBar scrollBar;
+    private final Queue<String> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Timer flushTimer;
+
+    // EDT only. Lines are numbered from 0; the ring holds the newest RETAINED_LINES of them.
+    private final String[] lines = new String[RETAINED_LINES];
+    private long total;
+    private long windowStart;
+    private long windowEnd;
+    // Whether new lines scroll into view; it changes only when the reader moves the scroll bar.
+    private boolean following = true;
+    private boolean scrolling;
+    private int lastValue;
+
+    ChatTranscript(JTextArea area, JScrollPane scrollPane) {
+        this.area = area;
+        this.scrollBar = scrollPane.getVerticalScrollBar();
+        ((DefaultCaret) area.getCaret()).setUpdatePolicy(DefaultCaret.NEVER_UPDATE);
+        flushTimer = new Timer(FLUSH_MILLIS, e -> flush());
+        flushTimer.setRepeats(false);
+        // Layout changes fire adjustment events too, so only a changed value counts as the reader scrolling.
+        scrollBar.addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && !scrolling && e.getValue() != lastValue) {
+                lastValue = e.getValue();
+                onScrolled();
+            }
+        });
+    }
+
+    // Safe from any thread.
+    void append(String line) {
+        incoming.add(line.replace('\n', ' '));
+        if (flushScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(flushTimer::restart);
+        }
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        String line;
+        while ((line = incoming.poll()) != null) {
+            lines[(int) (total++ % RETAINED_LINES)] = line;
+        }
+        if (following) {
+            appendLines(total);
+            trimTop();
+            scrollTo(Integer.MAX_VALUE);
+        } else if (windowEnd - windowStart < WINDOW_LINES) {
+            // the reader has scrolled up: fill the window without moving what they are looking at
+            appendLines(Math.min(total, windowStart + WINDOW_LINES));
+        }
+    }
+
+    private long oldestRetained() {
+        return Math.max(0, total - RETAINED_LINES);
+    }
+
+    private String line(long number) {
+        return lines[(int) (number % RETAINED_LINES)];
+    }
+
+    private boolean atBottom() {
+        return scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - rowHeight();
+    }
+
+    // Lines do not wrap, so every line is one row of the area's font.
+    private int rowHeight() {
+        return area.getFontMetrics(area.getFont()).getHeight();
+    }
+
+    private void onScrolled() {
+        if (scrollBar.getValue() == scrollBar.getMinimum() && windowStart > oldestRetained()) {
+            pageOlder();
+        } else if (windowEnd < total && atBottom()) {
+            pageNewer();
+        }
+        following = windowEnd == total && atBottom();
+    }
+
+    // Keeps the line the reader was looking at in place by scrolling past the lines added above it.
+    private void pageOlder() {
+        long from = Math.max(oldestRetained(), windowStart - PAGE_LINES);
+        long added = windowStart - from;
+        int value = scrollBar.getValue();
+        insert(0, text(from, windowStart));
+        windowStart = from;
+        trimBottom();
+        scrollTo(value + (int) added * rowHeight());
+    }
+
+    private void pageNewer() {
+        int value = scrollBar.getValue();
+        long start = windowStart;
+        appendLines(Math.min(total, windowEnd + PAGE_LINES));
+        trimTop();
+        scrollTo(value - (int) (windowStart - start) * rowHeight());
+    }
+
+    // Runs after the layout that follows a document edit, and is not mistaken for the reader scrolling.
+    private void scrollTo(int value) {
+        scrolling = true;
+        SwingUtilities.invokeLater(() -> {
+            scrollBar.setValue(value);
+            lastValue = scrollBar.getValue();
+            scrolling = false;
+        });
+    }
+
+    // Appends lines up to end; when more arrived than fit, the window restarts at the newest WINDOW_LINES.
+    private void appendLines(long end) {
+        long from = Math.max(Math.max(windowEnd, end - WINDOW_LINES), oldestRetained());
+        if (from > windowEnd) {
+            area.setText("");
+            windowStart = from;
+        }
+        insert(area.getDocument().getLength(), text(from, end));
+        windowEnd = end;
+    }
+
+    private String text(long from, long end) {
+        StringBuilder text = new StringBuilder();
+        for (long i = from; i < end; i++) {
+            text.append(line(i)).append('\n');
+        }
+        return text.toString();
+    }
+
+    // The document offset where the lines kept by trimTop would start, or 0 when nothing needs trimming.
+    private int removedTopOffset() {
+        long excess = windowEnd - windowStart - WINDOW_LINES;
+        if (excess <= 0) {
+            return 0;
+        }
+        return area.getDocument().getDefaultRootElement().getElement((int) excess - 1).getEndOffset();
+    }
+
+    private void trimTop() {
+        int offset = removedTopOffset();
+        if (offset > 0) {
+            remove(0, offset);
+            windowStart = windowEnd - WINDOW_LINES;
+        }
+    }
+
+    private void trimBottom() {
+        if (windowEnd - windowStart <= WINDOW_LINES) {
+            return;
+        }
+        Document document = area.getDocument();
+        Element lastKept = document.getDefaultRootElement().getElement(WINDOW_LINES - 1);
+        remove(lastKept.getEndOffset(), document.getLength() - lastKept.getEndOffset());
+        windowEnd = windowStart + WINDOW_LINES;
+    }
+
+    private void insert(int offset, String text) {
+        try {
+            area.getDocument().insertString(offset, text, null);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void remove(int offset, int length) {
+        try {
+            area.getDocument().remove(offset, length);
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
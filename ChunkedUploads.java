@@ -0,0 +1,380 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+class ChunkedUploads {
+    static final String INIT = "/upload-init";
+    static final String STATUS = "/upload-status";
+    static final String CHUNK = "/upload-chunk";
+    static final String COMPLETE = "/upload-complete";
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    static final int MAX_CHUNK_SIZE = 16 << 20;
+    static final long MAX_UPLOAD_BYTES = Long.getLong("chat.maxUploadMB", 4096) << 20;
+    private static final int MAX_CHUNKS = 1 << 20;
+
+    private static final long EXPIRY_MILLIS = Long.getLong("chat.uploadExpiryHours", 24) * 60 * 60 * 1000;
+
+    private final String fileDir;
+    private final File uploadDirectory;
+    private final AttachmentStore attachments;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    ChunkedUploads(String fileDir, AttachmentStore attachments) {
+        this.fileDir = fileDir;
+        this.uploadDirectory = new File(fileDir, "uploads");
+        this.attachments = attachments;
+    }
+
+    // Serves upload operations on one connection until the client closes it; uploads belong to the connection's user.
+    void serve(String firstOp, SocketChannel channel, DataInputStream in, String user, Consumer<Upload> onComplete)
+            throws IOException {
+        uploadDirectory.mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        ByteBuffer chunkBuffer = ByteBuffer.allocateDirect(DEFAULT_CHUNK_SIZE);
+        String op = firstOp;
+        while (op != null) {
+            switch (op) {
+                case INIT:
+                    init(in, out, user);
+                    break;
+                case STATUS:
+                    status(in, out, user);
+                    break;
+                case CHUNK:
+                    chunkBuffer = chunk(channel, in, out, user, chunkBuffer);
+                    break;
+                case COMPLETE:
+                    Upload finished = complete(in, out, user);
+                    if (finished != null) {
+                        onComplete.accept(finished);
+                    }
+                    break;
+                default:
+                    out.writeUTF("ERR unknown operation " + op);
+                    out.flush();
+                    return;
+            }
+            out.flush();
+            try {
+                op = in.readUTF();
+            } catch (EOFException e) {
+                op = null;
+            }
+        }
+    }
+
+    private void init(DataInputStream in, DataOutputStream out, String sender) throws IOException {
+        String recipient = in.readUTF();
+        String fileName = new File(in.readUTF()).getName();
+        long size = in.readLong();
+        int chunkSize = in.readInt();
+        if (size < 0 || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            out.writeUTF("ERR invalid size or chunk size");
+            return;
+        }
+        // the .part file is sized up front, so the declared size is all a client needs to claim disk space
+        if (size > MAX_UPLOAD_BYTES) {
+            out.writeUTF("ERR file larger than " + (MAX_UPLOAD_BYTES >> 20) + " MB");
+            return;
+        }
+        if (chunkCount(size, chunkSize) > MAX_CHUNKS) {
+            out.writeUTF("ERR chunk size too small for " + size + " bytes");
+            return;
+        }
+
+        expireStale();
+        Upload upload = new Upload(uploadDirectory, UUID.randomUUID().toString(), sender, recipient, fileName,
+                size, chunkSize);
+        upload.create();
+        uploads.put(upload.id, upload);
+        out.writeUTF("OK");
+        out.writeUTF(upload.id);
+    }
+
+    private void status(DataInputStream in, DataOutputStream out, String user) throws IOException {
+        Upload upload = find(in.readUTF(), user);
+        if (upload == null) {
+            out.writeLong(-1);
+            return;
+        }
+        BitSet missing = upload.missing();
+        out.writeLong(upload.size);
+        out.writeInt(upload.chunkSize);
+        out.writeInt(upload.chunkCount);
+        out.writeInt(missing.cardinality());
+        for (int i = missing.nextSetBit(0); i >= 0; i = missing.nextSetBit(i + 1)) {
+            out.writeInt(i);
+        }
+    }
+
+    private ByteBuffer chunk(SocketChannel channel, DataInputStream in, DataOutputStream out, String user,
+                             ByteBuffer buffer) throws IOException {
+        String id = in.readUTF();
+        int index = in.readInt();
+        int length = in.readInt();
+        long checksum = in.readLong();
+        if (length < 0 || length > MAX_CHUNK_SIZE) {
+            throw new IOException("Invalid chunk length " + length);
+        }
+        if (buffer.capacity() < length) {
+            buffer = ByteBuffer.allocateDirect(length);
+        }
+
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Chunk " + index + " of upload " + id + " ended early");
+            }
+        }
+        buffer.flip();
+        Metrics.fileBytesReceived.add(length);
+
+        Upload upload = find(id, user);
+        if (upload == null) {
+            out.writeUTF("ERR unknown upload");
+        } else if (index < 0 || index >= upload.chunkCount || length != upload.chunkLength(index)) {
+            out.writeUTF("ERR invalid chunk " + index);
+        } else {
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.duplicate());
+            if (crc.getValue() != checksum) {
+                out.writeUTF("CRC");
+            } else {
+                upload.write(index, buffer);
+                out.writeUTF("OK");
+            }
+        }
+        return buffer;
+    }
+
+    private Upload complete(DataInputStream in, DataOutputStream out, String user) throws IOException {
+        Upload upload = find(in.readUTF(), user);
+        if (upload == null) {
+            out.writeUTF("ERR unknown upload");
+            return null;
+        }
+        int missing = upload.missing().cardinality();
+        if (missing > 0) {
+            out.writeUTF("MISSING " + missing);
+            return null;
+        }
+        if (!uploads.remove(upload.id, upload)) {
+            out.writeUTF("ERR upload already completed");
+            return null;
+        }
+        upload.finish(attachments);
+        out.writeUTF("OK");
+        out.writeUTF(fileDir + "/" + upload.storedName);
+        return upload;
+    }
+
+    // Another user's upload is reported as unknown.
+    private Upload find(String id, String user) {
+        Upload upload = uploads.get(id);
+        if (upload == null && id.matches("[0-9a-f-]{36}")) {
+            try {
+                Upload loaded = Upload.load(uploadDirectory, id);
+                if (loaded != null) {
+                    Upload existing = uploads.putIfAbsent(id, loaded);
+                    upload = existing != null ? existing : loaded;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (upload == null || !upload.sender.equals(user)) {
+            return null;
+        }
+        upload.lastTouched = System.currentTimeMillis();
+        return upload;
+    }
+
+    static long chunkCount(long size, int chunkSize) {
+        return Math.max(1, size / chunkSize + (size % chunkSize != 0 ? 1 : 0));
+    }
+
+    // Also removes the files of uploads not loaded since a restart, going by when their files last changed.
+    void expireStale() {
+        long now = System.currentTimeMillis();
+        for (Upload upload : uploads.values()) {
+            if (now - upload.lastTouched > EXPIRY_MILLIS && uploads.remove(upload.id, upload)) {
+                upload.delete();
+            }
+        }
+        File[] files = uploadDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Map<String, Long> lastModified = new HashMap<>();
+        for (File file : files) {
+            String name = file.getName();
+            int dot = name.indexOf('.');
+            if (dot > 0) {
+                lastModified.merge(name.substring(0, dot), file.lastModified(), Math::max);
+            }
+        }
+        for (Map.Entry<String, Long> upload : lastModified.entrySet()) {
+            String id = upload.getKey();
+            if (now - upload.getValue() > EXPIRY_MILLIS && !uploads.containsKey(id)) {
+                for (String suffix : new String[] {".meta", ".part", ".chunks"}) {
+                    new File(uploadDirectory, id + suffix).delete();
+                }
+            }
+        }
+    }
+
+    // Chunks land with positional writes in a pre-sized .part file; verified chunk numbers go to a .chunks log.
+    static class Upload {
+        final String id;
+        final String sender;
+        final String recipient;
+        final String fileName;
+        final long size;
+        final int chunkSize;
+        final int chunkCount;
+        String storedName;
+
+        private final File metaFile;
+        private final File partFile;
+        private final File chunksFile;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final BitSet received = new BitSet();
+        private volatile long lastTouched = System.currentTimeMillis();
+        private FileChannel data;
+        private DataOutputStream chunkLog;
+
+        Upload(File directory, String id, String sender, String recipient, String fileName, long size,
+               int chunkSize) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunkCount = (int) Math.min(Integer.MAX_VALUE, chunkCount(size, chunkSize));
+            this.metaFile = new File(directory, id + ".meta");
+            this.partFile = new File(directory, id + ".part");
+            this.chunksFile = new File(directory, id + ".chunks");
+        }
+
+        static Upload load(File directory, String id) throws IOException {
+            File metaFile = new File(directory, id + ".meta");
+            if (!metaFile.isFile()) {
+                return null;
+            }
+            Properties meta = new Properties();
+            try (Reader reader = Files.newBufferedReader(metaFile.toPath())) {
+                meta.load(reader);
+            }
+            Upload upload = new Upload(directory, id, meta.getProperty("sender"), meta.getProperty("recipient"),
+                    meta.getProperty("fileName"), Long.parseLong(meta.getProperty("size")),
+                    Integer.parseInt(meta.getProperty("chunkSize")));
+            if (upload.chunksFile.isFile()) {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(upload.chunksFile)))) {
+                    while (in.available() >= Integer.BYTES) {
+                        upload.received.set(in.readInt());
+                    }
+                }
+            }
+            upload.open();
+            return upload;
+        }
+
+        void create() throws IOException {
+            Properties meta = new Properties();
+            meta.setProperty("sender", sender);
+            meta.setProperty("recipient", recipient);
+            meta.setProperty("fileName", fileName);
+            meta.setProperty("size", Long.toString(size));
+            meta.setProperty("chunkSize", Integer.toString(chunkSize));
+            try (Writer writer = Files.newBufferedWriter(metaFile.toPath())) {
+                meta.store(writer, "chunked upload");
+            }
+            try (RandomAccessFile file = new RandomAccessFile(partFile, "rw")) {
+                file.setLength(size);
+            }
+            open();
+        }
+
+        private void open() throws IOException {
+            data = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE);
+            chunkLog = new DataOutputStream(new FileOutputStream(chunksFile, true));
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        void write(int index, ByteBuffer chunk) throws IOException {
+            long position = (long) index * chunkSize;
+            while (chunk.hasRemaining()) {
+                position += data.write(chunk, position);
+            }
+            // the chunk must be on disk before its index is, or a resume after a crash would skip lost data
+            data.force(false);
+            lock.lock();
+            try {
+                if (!received.get(index)) {
+                    received.set(index);
+                    chunkLog.writeInt(index);
+                    chunkLog.flush();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        BitSet missing() {
+            lock.lock();
+            try {
+                BitSet missing = new BitSet(chunkCount);
+                missing.set(0, chunkCount);
+                missing.andNot(received);
+                if (size == 0) {
+                    missing.clear();
+                }
+                return missing;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void finish(AttachmentStore attachments) throws IOException {
+            close();
+            storedName = attachments.add(partFile, fileName);
+            Files.deleteIfExists(metaFile.toPath());
+            Files.deleteIfExists(chunksFile.toPath());
+        }
+
+        void delete() {
+            try {
+                close();
+                Files.deleteIfExists(partFile.toPath());
+                Files.deleteIfExists(metaFile.toPath());
+                Files.deleteIfExists(chunksFile.toPath());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void close() throws IOException {
+            data.force(false);
+            data.close();
+            chunkLog.close();
+        }
+    }
+}
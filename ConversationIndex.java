@@ -0,0 +1,95 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+class ConversationIndex {
+    private final File file;
+    private final Map<String, Set<String>> conversations = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Writer writer;
+
+    ConversationIndex(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    // On first start the index is seeded from the user1_user2.txt files already on disk.
+    void load(Set<String> knownUsers) {
+        boolean existed = file.exists();
+        if (existed) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(':');
+                    if (separator > 0) {
+                        remember(line.substring(0, separator), line.substring(separator + 1));
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (!existed) {
+            File[] chatFiles = new File(".").listFiles((dir, name) -> name.endsWith(".txt") && name.contains("_"));
+            if (chatFiles != null) {
+                for (File chatFile : chatFiles) {
+                    seedFrom(chatFile.getName(), knownUsers);
+                }
+            }
+        }
+        System.out.println("Conversation index loaded for " + conversations.size() + " users.");
+    }
+
+    void addPrivate(String user1, String user2) {
+        add(user1, user2);
+        add(user2, user1);
+    }
+
+    void add(String user, String conversation) {
+        if (remember(user, conversation)) {
+            writeLock.lock();
+            try {
+                if (writer != null) {
+                    writer.write(user + ":" + conversation + "\n");
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    Set<String> conversationsOf(String user) {
+        Set<String> result = conversations.get(user);
+        return result != null ? Collections.unmodifiableSet(result) : Collections.emptySet();
+    }
+
+    private boolean remember(String user, String conversation) {
+        return conversations.computeIfAbsent(user, key -> ConcurrentHashMap.newKeySet()).add(conversation);
+    }
+
+    private void seedFrom(String fileName, Set<String> knownUsers) {
+        String base = fileName.substring(0, fileName.length() - ".txt".length());
+        for (int i = base.indexOf('_'); i > 0; i = base.indexOf('_', i + 1)) {
+            String first = base.substring(0, i);
+            String second = base.substring(i + 1);
+            if (knownUsers.contains(first) && knownUsers.contains(second)) {
+                addPrivate(first, second);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+class FileTransferClient {
+    private static final long DOWNLOAD_STEP = 1024 * 1024;
+    private static final int UPLOAD_ATTEMPTS = 10;
+    private static final long RETRY_DELAY_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final String token;
+    private final LongConsumer progress;
+
+    // The token is the [SESSION] token of the user's chat connection, which the file port takes as a login.
+    FileTransferClient(String host, int port, String token) {
+        this(host, port, token, bytes -> { });
+    }
+
+    // The progress listener receives the number of bytes transferred so far, from the transferring thread.
+    FileTransferClient(String host, int port, String token, LongConsumer progress) {
+        this.host = host;
+        this.port = port;
+        this.token = token;
+        this.progress = progress;
+    }
+
+    // Downloads a file announced by a [DOWNLOAD] line; the stored name loses its hash prefix.
+    File download(String serverPath, File directory) throws IOException {
+        return download(serverPath, directory, size -> { });
+    }
+
+    // The size listener is told the file size once the server has sent it, before any progress is reported.
+    File download(String serverPath, File directory, LongConsumer sizeListener) throws IOException {
+        String storedName = serverPath.substring(serverPath.lastIndexOf('/') + 1);
+        String fileName = storedName.indexOf('_') >= 0 ? storedName.substring(storedName.indexOf('_') + 1) : storedName;
+        File target = new File(directory, fileName);
+
+        try (SocketChannel channel = open()) {
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+            dos.writeUTF("/download");
+            dos.writeUTF(serverPath);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            long size = dis.readLong();
+            if (size < 0) {
+                throw new FileNotFoundException("Server has no file " + serverPath);
+            }
+            sizeListener.accept(size);
+
+            try (FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < size) {
+                    long transferred = out.transferFrom(channel, position, Math.min(DOWNLOAD_STEP, size - position));
+                    if (transferred <= 0) {
+                        throw new EOFException("Download of " + fileName + " ended early");
+                    }
+                    position += transferred;
+                    progress.accept(position);
+                }
+            } catch (IOException e) {
+                target.delete();
+                throw e;
+            }
+        }
+        return target;
+    }
+
+    // Uploads a file in checksummed chunks over several connections; returns the stored path on the server.
+    // Bytes are only sent when the server does not already hold a file with the same SHA-256.
+    String upload(File file, String recipient, int connections) throws IOException {
+        String storedPath = offerHash(file, recipient);
+        if (storedPath != null) {
+            return storedPath;
+        }
+
+        String uploadId;
+        try (SocketChannel channel = open()) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            dos.writeUTF(ChunkedUploads.INIT);
+            dos.writeUTF(recipient);
+            dos.writeUTF(file.getName());
+            dos.writeLong(file.length());
+            dos.writeInt(ChunkedUploads.DEFAULT_CHUNK_SIZE);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            String reply = dis.readUTF();
+            if (!reply.equals("OK")) {
+                throw new IOException("Upload rejected: " + reply);
+            }
+            uploadId = dis.readUTF();
+        }
+        return resume(uploadId, file, connections);
+    }
+
+    private String offerHash(File file, String recipient) throws IOException {
+        String hash = AttachmentStore.sha256(file);
+        try (SocketChannel channel = open()) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            dos.writeUTF(AttachmentStore.HAVE);
+            dos.writeUTF(recipient);
+            dos.writeUTF(file.getName());
+            dos.writeUTF(hash);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            return dis.readUTF().equals("HAVE") ? dis.readUTF() : null;
+        }
+    }
+
+    // Sends whatever chunks the server is still missing, so an interrupted upload picks up where it stopped.
+    String resume(String uploadId, File file, int connections) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                UploadStatus status = status(uploadId);
+                if (status.missing.isEmpty()) {
+                    return complete(uploadId);
+                }
+                if (attempt > UPLOAD_ATTEMPTS) {
+                    throw new IOException("Upload " + uploadId + " still missing " + status.missing.size() + " chunks");
+                }
+                sendChunks(uploadId, file, status, connections);
+            } catch (IOException e) {
+                if (attempt > UPLOAD_ATTEMPTS || Thread.currentThread().isInterrupted()) {
+                    throw e;
+                }
+                System.out.println("Upload interrupted (" + e.getMessage() + "), retrying...");
+                sleepBeforeRetry();
+            }
+        }
+    }
+
+    private UploadStatus status(String uploadId) throws IOException {
+        try (SocketChannel channel = open()) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            dos.writeUTF(ChunkedUploads.STATUS);
+            dos.writeUTF(uploadId);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            long size = dis.readLong();
+            if (size < 0) {
+                throw new FileNotFoundException("Server has no upload " + uploadId);
+            }
+            UploadStatus status = new UploadStatus(size, dis.readInt());
+            dis.readInt();
+            int missing = dis.readInt();
+            for (int i = 0; i < missing; i++) {
+                status.missing.add(dis.readInt());
+            }
+            return status;
+        }
+    }
+
+    private String complete(String uploadId) throws IOException {
+        try (SocketChannel channel = open()) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            dos.writeUTF(ChunkedUploads.COMPLETE);
+            dos.writeUTF(uploadId);
+            dos.flush();
+
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            String reply = dis.readUTF();
+            if (!reply.equals("OK")) {
+                throw new IOException("Upload " + uploadId + " not completed: " + reply);
+            }
+            return dis.readUTF();
+        }
+    }
+
+    private void sendChunks(String uploadId, File file, UploadStatus status, int connections) throws IOException {
+        Queue<Integer> pending = new ConcurrentLinkedQueue<>(status.missing);
+        List<Thread> senders = new ArrayList<>();
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        AtomicLong acknowledged = new AtomicLong(status.size);
+        for (int index : status.missing) {
+            acknowledged.addAndGet(-status.chunkLength(index));
+        }
+        progress.accept(acknowledged.get());
+        for (int i = 0; i < Math.max(1, Math.min(connections, status.missing.size())); i++) {
+            Thread sender = new Thread(() -> {
+                try {
+                    sendChunks(uploadId, file, status, pending, acknowledged);
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            });
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            try {
+                sender.join();
+            } catch (InterruptedException e) {
+                senders.forEach(Thread::interrupt);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Upload interrupted");
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void sendChunks(String uploadId, File file, UploadStatus status, Queue<Integer> pending,
+                            AtomicLong acknowledged) throws IOException {
+        try (SocketChannel channel = open();
+             FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            DataInputStream dis = new DataInputStream(Channels.newInputStream(channel));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(status.chunkSize);
+            Integer index;
+            while ((index = pending.poll()) != null) {
+                long position = (long) index * status.chunkSize;
+                buffer.clear().limit(status.chunkLength(index));
+                while (buffer.hasRemaining()) {
+                    if (source.read(buffer, position + buffer.position()) < 0) {
+                        throw new EOFException(file.getName() + " changed during upload");
+                    }
+                }
+                buffer.flip();
+                CRC32C crc = new CRC32C();
+                crc.update(buffer.duplicate());
+
+                dos.writeUTF(ChunkedUploads.CHUNK);
+                dos.writeUTF(uploadId);
+                dos.writeInt(index);
+                dos.writeInt(buffer.remaining());
+                dos.writeLong(crc.getValue());
+                dos.flush();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+
+                String reply = dis.readUTF();
+                if (reply.equals("OK")) {
+                    progress.accept(acknowledged.addAndGet(status.chunkLength(index)));
+                } else if (!reply.equals("CRC")) {
+                    throw new IOException("Chunk " + index + " rejected: " + reply);
+                }
+            }
+        }
+    }
+
+    private SocketChannel open() throws IOException {
+        if (token == null) {
+            throw new IOException("Not logged in");
+        }
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        try {
+            DataOutputStream dos = new DataOutputStream(Channels.newOutputStream(channel));
+            dos.writeUTF(SessionTokens.FILE_AUTH);
+            dos.writeUTF(token);
+            dos.flush();
+            String reply = new DataInputStream(Channels.newInputStream(channel)).readUTF();
+            if (!reply.equals("OK")) {
+                throw new IOException("File server refused the session: " + reply);
+            }
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static void sleepBeforeRetry() throws InterruptedIOException {
+        try {
+            Thread.sleep(RETRY_DELAY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Upload interrupted");
+        }
+    }
+
+    private static class UploadStatus {
+        private final long size;
+        private final int chunkSize;
+        private final List<Integer> missing = new ArrayList<>();
+
+        UploadStatus(long size, int chunkSize) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+    }
+}
@@ -0,0 +1,270 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringJoiner;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Binary frame: int length | byte type | byte flags | long id | payload (UTF-8, optionally deflated).
+// A sequenced frame's id is its position in the conversation log, and its payload starts with the conversation name.
+class Frame {
+    enum Format { TEXT, BINARY, DEFLATE }
+
+    static final byte AUTH = 1;
+    static final byte PUBLIC = 2;
+    static final byte PRIVATE = 3;
+    static final byte PRESENCE = 4;
+    static final byte HISTORY = 5;
+    static final byte FILE = 6;
+    static final byte COMMAND = 7;
+    static final byte TEXT = 8;
+    static final byte OFFLINE = 9;
+    static final byte ROOM = 10;
+
+    static final String NEGOTIATE = "/binary";
+    static final int HEADER_BYTES = 1 + 1 + Long.BYTES;
+    static final int MAX_PAYLOAD_BYTES = 1 << 20;
+    // A client's message leaves room for the timestamp, names and conversation the server adds around it.
+    static final int MAX_MESSAGE_BYTES = MAX_PAYLOAD_BYTES - 4096;
+
+    private static final int FLAG_DEFLATE = 1;
+    private static final int FLAG_SEQUENCED = 2;
+    private static final int COMPRESS_THRESHOLD = 512;
+    private static final AtomicLong ids = new AtomicLong();
+
+    final byte type;
+    final long id;
+    final String text;
+    final String conversation;
+    private volatile ByteBuffer textEncoding;
+    private volatile ByteBuffer binaryEncoding;
+    private volatile ByteBuffer deflateEncoding;
+
+    Frame(byte type, String text) {
+        this(type, ids.incrementAndGet(), text);
+    }
+
+    Frame(byte type, long id, String text) {
+        this(type, id, null, text);
+    }
+
+    Frame(byte type, long id, String conversation, String text) {
+        this.type = type;
+        this.id = id;
+        this.conversation = conversation;
+        this.text = text;
+    }
+
+    // Maps a typed command line to its frame, so text and binary clients share one dispatch.
+    static Frame fromLine(String line) {
+        if (line.startsWith("/private ")) {
+            String[] tokens = line.split(" ", 3);
+            return new Frame(PRIVATE, tokens[1] + "\n" + (tokens.length > 2 ? tokens[2] : ""));
+        } else if (line.startsWith("/room ")) {
+            String[] tokens = line.split(" ", 3);
+            return new Frame(ROOM, tokens[1] + "\n" + (tokens.length > 2 ? tokens[2] : ""));
+        } else if (line.equalsIgnoreCase("/history")) {
+            return new Frame(HISTORY, "");
+        } else if (line.startsWith("/history ")) {
+            return new Frame(HISTORY, line.substring(9));
+        } else if (line.startsWith("/login ") || line.startsWith("/register ") || line.startsWith("/resume ")) {
+            String[] tokens = line.substring(1).split(" ", 3);
+            return new Frame(AUTH, String.join("\n", tokens));
+        } else if (line.startsWith("/")) {
+            return new Frame(COMMAND, line);
+        }
+        return new Frame(PUBLIC, line);
+    }
+
+    // Each format is encoded at most once, however many sessions the frame is fanned out to.
+    ByteBuffer encode(Format format) {
+        switch (format) {
+            case BINARY:
+                if (binaryEncoding == null) {
+                    binaryEncoding = encodeBinary(false);
+                }
+                return binaryEncoding;
+            case DEFLATE:
+                if (deflateEncoding == null) {
+                    deflateEncoding = encodeBinary(true);
+                }
+                return deflateEncoding;
+            default:
+                if (textEncoding == null) {
+                    textEncoding = ByteBuffer.wrap((toLine() + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+                }
+                return textEncoding;
+        }
+    }
+
+    // The line-protocol form of this frame, also used by binary clients that print what they receive.
+    String toLine() {
+        switch (type) {
+            case FILE:
+                return "[DOWNLOAD]" + text;
+            case OFFLINE:
+                return text + "\n[ACK]" + id;
+            default:
+                return conversation != null ? text + "\n[SEQ]" + conversation + " " + id : text;
+        }
+    }
+
+    // Splits lines over as many frames as it takes to keep each payload within MAX_PAYLOAD_BYTES, since readers
+    // drop the connection on a larger frame. A line that fits in no frame is cut short.
+    static List<Frame> pack(byte type, List<String> lines) {
+        List<Frame> frames = new ArrayList<>();
+        StringJoiner text = new StringJoiner("\n");
+        int count = 0;
+        int bytes = 0;
+        for (String line : lines) {
+            line = clip(line, MAX_PAYLOAD_BYTES);
+            int length = utf8Length(line);
+            if (count > 0 && bytes + 1 + length > MAX_PAYLOAD_BYTES) {
+                frames.add(new Frame(type, text.toString()));
+                text = new StringJoiner("\n");
+                count = 0;
+                bytes = 0;
+            }
+            bytes += (count++ > 0 ? 1 : 0) + length;
+            text.add(line);
+        }
+        if (count > 0) {
+            frames.add(new Frame(type, text.toString()));
+        }
+        return frames;
+    }
+
+    static boolean fits(String text, int maxBytes) {
+        // a char encodes to at most three bytes, so short text needs no encoding to check
+        return (long) text.length() * 3 <= maxBytes || utf8Length(text) <= maxBytes;
+    }
+
+    static int utf8Length(String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    // Cuts text to at most maxBytes of UTF-8 without splitting a character, marking the cut with an ellipsis.
+    static String clip(String text, int maxBytes) {
+        if (fits(text, maxBytes)) {
+            return text;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int end = Math.max(0, maxBytes - 3);
+        while (end > 0 && (bytes[end] & 0xC0) == 0x80) {
+            end--;
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8) + "\u2026";
+    }
+
+    private ByteBuffer encodeBinary(boolean compress) {
+        byte[] payload = (conversation != null ? conversation + "\n" + text : text).getBytes(StandardCharsets.UTF_8);
+        int flags = conversation != null ? FLAG_SEQUENCED : 0;
+        int payloadLength = payload.length;
+        if (compress && payload.length >= COMPRESS_THRESHOLD) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] compressed = new byte[payload.length];
+            int length = deflater.deflate(compressed);
+            boolean smaller = deflater.finished() && length < payload.length;
+            deflater.end();
+            if (smaller) {
+                payload = compressed;
+                payloadLength = length;
+                flags |= FLAG_DEFLATE;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + HEADER_BYTES + payloadLength);
+        buffer.putInt(HEADER_BYTES + payloadLength).put(type).put((byte) flags).putLong(id).put(payload, 0, payloadLength);
+        return buffer.flip().asReadOnlyBuffer();
+    }
+
+    // Decodes the bytes after the length prefix.
+    static Frame decode(ByteBuffer body) throws IOException {
+        byte type = body.get();
+        byte flags = body.get();
+        long id = body.getLong();
+        byte[] payload = new byte[body.remaining()];
+        body.get(payload);
+        if ((flags & FLAG_DEFLATE) != 0) {
+            payload = inflate(payload);
+        }
+        String text = new String(payload, StandardCharsets.UTF_8);
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            int separator = text.indexOf('\n');
+            if (separator < 0) {
+                throw new IOException("Sequenced frame without a conversation");
+            }
+            return new Frame(type, id, text.substring(0, separator), text.substring(separator + 1));
+        }
+        return new Frame(type, id, text);
+    }
+
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] body = new byte[length];
+        in.readFully(body);
+        return decode(ByteBuffer.wrap(body));
+    }
+
+    static void write(DataOutputStream out, Frame frame, Format format) throws IOException {
+        ByteBuffer encoded = frame.encode(format).duplicate();
+        byte[] bytes = new byte[encoded.remaining()];
+        encoded.get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < HEADER_BYTES || length > HEADER_BYTES + MAX_PAYLOAD_BYTES) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    // Reads one text line from a stream that may switch to binary frames after it; null at end of stream.
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                return line.size() > 0 ? line.toString(StandardCharsets.UTF_8) : null;
+            }
+            if (line.size() >= MAX_PAYLOAD_BYTES) {
+                throw new IOException("Line too long");
+            }
+            line.write(b);
+        }
+        byte[] bytes = line.toByteArray();
+        int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static byte[] inflate(byte[] compressed) throws IOException {
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] chunk = new byte[8192];
+        try {
+            while (!inflater.finished()) {
+                int length = inflater.inflate(chunk);
+                if (length == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Truncated compressed frame");
+                }
+                if (out.size() + length > MAX_PAYLOAD_BYTES) {
+                    throw new IOException("Compressed frame too large");
+                }
+                out.write(chunk, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        } finally {
+            inflater.end();
+        }
+        return out.toByteArray();
+    }
+}
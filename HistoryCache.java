@@ -0,0 +1,157 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+class HistoryCache {
+    private static final int ENTRY_OVERHEAD = 48;
+
+    private final long budgetBytes;
+    private final int depth;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private long usedBytes;
+
+    HistoryCache(long budgetBytes, int depth) {
+        this.budgetBytes = budgetBytes;
+        this.depth = depth;
+    }
+
+    static HistoryCache fromSystemProperties() {
+        return new HistoryCache(Long.getLong("chat.historyCacheBytes", 16L * 1024 * 1024),
+                Integer.getInteger("chat.historyCacheDepth", 500));
+    }
+
+    void add(String file, long id, String line) {
+        if (budgetBytes <= 0) {
+            return;
+        }
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(file);
+            if (conversation == null) {
+                conversation = new Conversation(id);
+                conversations.put(file, conversation);
+            } else if (conversation.nextId() != id) {
+                drop(file, conversation);
+                conversation = new Conversation(id);
+                conversations.put(file, conversation);
+            }
+            conversation.lines.addLast(line);
+            usedBytes += cost(line);
+            while (conversation.lines.size() > depth) {
+                usedBytes -= cost(conversation.lines.pollFirst());
+                conversation.firstId++;
+            }
+            evictOverBudget();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the lines for ids first..last, or null if the cache does not hold all of them.
+    List<String> get(String file, long first, long last) {
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(file);
+            if (conversation == null || first < conversation.firstId || last >= conversation.nextId()) {
+                misses.increment();
+                return null;
+            }
+            List<String> lines = new ArrayList<>((int) (last - first + 1));
+            Iterator<String> iterator = conversation.lines.iterator();
+            for (long id = conversation.firstId; id <= last; id++) {
+                String line = iterator.next();
+                if (id >= first) {
+                    lines.add(line);
+                }
+            }
+            hits.increment();
+            return lines;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Warms the cache with a page read from disk when it ends where the cached tail begins.
+    void fill(String file, long first, List<String> lines, long latestId) {
+        if (budgetBytes <= 0 || lines.isEmpty()) {
+            return;
+        }
+        long last = first + lines.size() - 1;
+        lock.lock();
+        try {
+            Conversation conversation = conversations.get(file);
+            if (conversation == null) {
+                if (last != latestId) {
+                    return;
+                }
+                conversation = new Conversation(last + 1);
+                conversations.put(file, conversation);
+            } else if (conversation.firstId != last + 1) {
+                return;
+            }
+            for (int i = lines.size() - 1; i >= 0 && conversation.lines.size() < depth; i--) {
+                conversation.lines.addFirst(lines.get(i));
+                conversation.firstId--;
+                usedBytes += cost(lines.get(i));
+            }
+            evictOverBudget();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            return "history cache: conversations=" + conversations.size() + " bytes=" + usedBytes + "/" + budgetBytes
+                    + " hits=" + hits.sum() + " misses=" + misses.sum() + " evictions=" + evictions.sum();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void evictOverBudget() {
+        Iterator<Map.Entry<String, Conversation>> eldest = conversations.entrySet().iterator();
+        while (usedBytes > budgetBytes && eldest.hasNext()) {
+            Conversation conversation = eldest.next().getValue();
+            for (String line : conversation.lines) {
+                usedBytes -= cost(line);
+            }
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private void drop(String file, Conversation conversation) {
+        for (String line : conversation.lines) {
+            usedBytes -= cost(line);
+        }
+        conversations.remove(file);
+    }
+
+    private static long cost(String line) {
+        return ENTRY_OVERHEAD + 2L * line.length();
+    }
+
+    private static class Conversation {
+        private final ArrayDeque<String> lines = new ArrayDeque<>();
+        private long firstId;
+
+        Conversation(long firstId) {
+            this.firstId = firstId;
+        }
+
+        long nextId() {
+            return firstId + lines.size();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Usage: java IdleConnectionFootprint <blocking|virtual|nio> [connections]
+public class IdleConnectionFootprint {
+    private static final int PORT = Integer.getInteger("chat.port", 12345);
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "blocking";
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        System.setProperty("chat.mode", mode);
+
+        Thread server = new Thread(() -> ChatServer.main(new String[0]), "chat-server");
+        server.setDaemon(true);
+        server.start();
+        waitForServer();
+        Thread.sleep(500);
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long heapBefore = usedHeap(memory);
+        long rssBefore = residentKb();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        List<SocketChannel> channels = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            channels.add(SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT)));
+        }
+        Thread.sleep(2000);
+
+        long heapAfter = usedHeap(memory);
+        long rssAfter = residentKb();
+        int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        double heapPerConnection = (double) (heapAfter - heapBefore) / connections;
+        double rssPerConnection = (rssAfter - rssBefore) * 1024.0 / connections;
+        System.out.printf("mode=%s connections=%d%n", mode, connections);
+        System.out.printf("heap: %.0f bytes/connection, ~%.0f connections per GB%n",
+                heapPerConnection, (1L << 30) / Math.max(1, heapPerConnection));
+        System.out.printf("rss:  %.0f bytes/connection, ~%.0f connections per GB%n",
+                rssPerConnection, (1L << 30) / Math.max(1, rssPerConnection));
+        System.out.printf("platform threads: %d -> %d%n", threadsBefore, threadsAfter);
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        System.exit(0);
+    }
+
+    private static void waitForServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try {
+                SocketChannel.open(new InetSocketAddress("127.0.0.1", PORT)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Chat server did not start on port " + PORT);
+    }
+
+    private static long usedHeap(MemoryMXBean memory) throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long residentKb() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not on Linux; only the heap figure is reported
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Log-linear buckets over microseconds: exact below 64 us, then 32 buckets per power of two (about 3% wide).
+// Recording is one LongAdder increment, so many threads can record into the same histogram without contending.
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int LINEAR = 64;
+    private static final int BUCKETS = LINEAR + (64 - 6) * (1 << SUB_BUCKET_BITS);
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        counts[bucket(nanos / 1000)].increment();
+        sumNanos.add(nanos);
+    }
+
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+        }
+        return new Snapshot(copy, sumNanos.sum());
+    }
+
+    private static int bucket(long micros) {
+        if (micros < LINEAR) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & ((1 << SUB_BUCKET_BITS) - 1);
+        return LINEAR + (exponent - 6) * (1 << SUB_BUCKET_BITS) + sub;
+    }
+
+    // The upper bound of a bucket, in nanoseconds.
+    private static long upperNanos(int bucket) {
+        if (bucket < LINEAR) {
+            return (bucket + 1) * 1000L;
+        }
+        int exponent = (bucket - LINEAR) / (1 << SUB_BUCKET_BITS) + 6;
+        int sub = (bucket - LINEAR) % (1 << SUB_BUCKET_BITS);
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return ((1L << exponent) + (sub + 1) * width) * 1000L;
+    }
+
+    // Snapshots are immutable; plus and minus combine them, e.g. to merge threads or to get one interval.
+    static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0);
+
+        private final long[] counts;
+        final long sumNanos;
+        final long count;
+
+        private Snapshot(long[] counts, long sumNanos) {
+            this.counts = counts;
+            this.sumNanos = sumNanos;
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            this.count = total;
+        }
+
+        Snapshot plus(Snapshot other) {
+            long[] sum = counts.clone();
+            for (int i = 0; i < BUCKETS; i++) {
+                sum[i] += other.counts[i];
+            }
+            return new Snapshot(sum, sumNanos + other.sumNanos);
+        }
+
+        Snapshot minus(Snapshot earlier) {
+            long[] difference = counts.clone();
+            for (int i = 0; i < BUCKETS; i++) {
+                difference[i] -= earlier.counts[i];
+            }
+            return new Snapshot(difference, sumNanos - earlier.sumNanos);
+        }
+
+        long percentile(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return upperNanos(i);
+                }
+            }
+            return upperNanos(BUCKETS - 1);
+        }
+
+        long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] > 0) {
+                    return upperNanos(i);
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,606 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Headless load generator speaking the client protocol (binary frames) over a few selector threads.
+// Users log in (registering on first use), then public, private, /history and upload traffic is sent at fixed
+// aggregate rates. Latency is measured from each message's scheduled send time to its delivery, so a stalled
+// server shows up in the percentiles instead of silently slowing the generator down.
+public class LoadGenerator {
+    private static final String HOST = System.getProperty("chat.host", "127.0.0.1");
+    private static final int PORT = Integer.getInteger("chat.port", 12345);
+    private static final int FILE_PORT = Integer.getInteger("chat.filePort", 12346);
+    private static final int USERS = Integer.getInteger("chat.load.users", 1000);
+    private static final String USER_PREFIX = System.getProperty("chat.load.userPrefix", "load");
+    private static final String PASSWORD = System.getProperty("chat.load.password", "load-password");
+    private static final int LOOPS = Integer.getInteger("chat.load.loops",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final double CONNECT_RATE = rate("chat.load.connectRate", 500);
+    private static final double PUBLIC_RATE = rate("chat.load.publicRate", 10);
+    private static final double PRIVATE_RATE = rate("chat.load.privateRate", 1000);
+    private static final double HISTORY_RATE = rate("chat.load.historyRate", 10);
+    private static final double UPLOAD_RATE = rate("chat.load.uploadRate", 0.5);
+    private static final int MESSAGE_BYTES = Integer.getInteger("chat.load.messageBytes", 100);
+    private static final int UPLOAD_BYTES = Integer.getInteger("chat.load.uploadBytes", 256 * 1024);
+    private static final int UPLOAD_THREADS = Integer.getInteger("chat.load.uploadThreads", 4);
+    private static final int SECONDS = Integer.getInteger("chat.load.seconds", 60);
+    private static final int REPORT_SECONDS = Integer.getInteger("chat.load.reportSeconds", 5);
+    // Loopback only: spreads connections over 127.0.0.2.. so more than ~28k of them fit in the ephemeral port range.
+    private static final int SOURCE_ADDRESSES = Integer.getInteger("chat.load.sourceAddresses", 1);
+    private static final int MAX_PENDING_WRITES = 10_000;
+    private static final long RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final String MARKER = "LOADGEN ";
+
+    private static final int LOGIN = 0;
+    private static final int PUBLIC = 1;
+    private static final int PRIVATE = 2;
+    private static final int HISTORY = 3;
+    private static final int UPLOAD = 4;
+    private static final String[] KIND_NAMES = {"login", "public", "private", "history", "upload"};
+
+    private static final LongAdder[] sent = adders(KIND_NAMES.length);
+    private static final LongAdder online = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder disconnected = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+    private static final LongAdder uploadErrors = new LongAdder();
+    private static final LatencyHistogram uploadLatency = new LatencyHistogram();
+    private static final List<Loop> loops = new ArrayList<>();
+    private static final String padding = "x".repeat(Math.max(0, MESSAGE_BYTES - 30));
+    private static volatile long trafficStart;
+    private static volatile boolean trafficStopped;
+
+    public static void main(String[] args) throws Exception {
+        System.out.printf(Locale.ROOT, "Load: %d users against %s:%d, %d loops; per second: %.1f public, %.1f private,"
+                        + " %.1f history, %.1f uploads%n", USERS, HOST, PORT, LOOPS, PUBLIC_RATE, PRIVATE_RATE,
+                HISTORY_RATE, UPLOAD_RATE);
+        for (int i = 0; i < LOOPS; i++) {
+            Loop loop = new Loop(i);
+            loops.add(loop);
+            Thread thread = new Thread(loop, "load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long rampStart = System.nanoTime();
+        long lastProgress = 0;
+        long lastSettled = -1;
+        while (online.sum() + failed.sum() < USERS) {
+            Thread.sleep(1000);
+            long settled = online.sum() + failed.sum();
+            if (settled != lastSettled) {
+                lastSettled = settled;
+                lastProgress = System.nanoTime();
+            } else if (System.nanoTime() - lastProgress > TimeUnit.SECONDS.toNanos(30)) {
+                System.out.println("No login progress for 30 s, starting traffic anyway.");
+                break;
+            }
+            System.out.printf(Locale.ROOT, "Connecting: %d online, %d failed%n", online.sum(), failed.sum());
+        }
+        LatencyHistogram.Snapshot logins = merged(LOGIN);
+        System.out.printf(Locale.ROOT, "%d users online in %.1f s (login p50 %s, p99 %s), %d failed%n", online.sum(),
+                (System.nanoTime() - rampStart) / 1e9, millis(logins.percentile(0.50)),
+                millis(logins.percentile(0.99)), failed.sum());
+
+        ExecutorService uploads = Executors.newFixedThreadPool(Math.max(1, UPLOAD_THREADS), runnable -> {
+            Thread thread = new Thread(runnable, "load-upload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        trafficStart = System.nanoTime();
+        long uploadsIssued = 0;
+        long nextReport = trafficStart + TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+        long end = trafficStart + TimeUnit.SECONDS.toNanos(SECONDS);
+        long[] lastSent = {0};
+        long lastReport = trafficStart;
+        LatencyHistogram.Snapshot[] lastLatency = new LatencyHistogram.Snapshot[KIND_NAMES.length];
+        Arrays.fill(lastLatency, LatencyHistogram.Snapshot.EMPTY);
+        while (System.nanoTime() < end) {
+            long now = System.nanoTime();
+            long due = UPLOAD_RATE > 0 ? (long) ((now - trafficStart) / 1e9 * UPLOAD_RATE) + 1 : 0;
+            for (; uploadsIssued < due; uploadsIssued++) {
+                long scheduled = trafficStart + (long) (uploadsIssued * 1e9 / UPLOAD_RATE);
+                uploads.execute(() -> upload(scheduled));
+            }
+            if (now >= nextReport) {
+                report(now, lastReport, lastSent, lastLatency);
+                lastReport = now;
+                nextReport += TimeUnit.SECONDS.toNanos(REPORT_SECONDS);
+            }
+            Thread.sleep(10);
+        }
+        trafficStopped = true;
+        Thread.sleep(2000);
+        summary();
+        System.exit(0);
+    }
+
+    private static double rate(String property, double defaultRate) {
+        return Double.parseDouble(System.getProperty(property, Double.toString(defaultRate)));
+    }
+
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static String userName(int index) {
+        return USER_PREFIX + index;
+    }
+
+    private static String payload(long scheduled) {
+        return MARKER + scheduled + " " + padding;
+    }
+
+    // Each upload has fresh random content, so the server cannot answer it from its content-addressed store.
+    private static void upload(long scheduled) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int sender = random.nextInt(USERS);
+        int recipient = (sender + 1 + random.nextInt(Math.max(1, USERS - 1))) % USERS;
+        // the file port takes the sender's session token, so the upload waits for that user to be online
+        String token = loops.get(sender % LOOPS).users.get(sender / LOOPS).token;
+        if (token == null) {
+            return;
+        }
+        File file = null;
+        try {
+            file = File.createTempFile("load-upload", ".bin");
+            byte[] content = new byte[UPLOAD_BYTES];
+            random.nextBytes(content);
+            Files.write(file.toPath(), content);
+            sent[UPLOAD].increment();
+            new FileTransferClient(HOST, FILE_PORT, token).upload(file, userName(recipient), 1);
+            uploadLatency.record(System.nanoTime() - scheduled);
+        } catch (IOException e) {
+            uploadErrors.increment();
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+
+    private static LatencyHistogram.Snapshot merged(int kind) {
+        if (kind == UPLOAD) {
+            return uploadLatency.snapshot();
+        }
+        LatencyHistogram.Snapshot total = LatencyHistogram.Snapshot.EMPTY;
+        for (Loop loop : loops) {
+            total = total.plus(loop.latency[kind].snapshot());
+        }
+        return total;
+    }
+
+    private static void report(long now, long since, long[] lastSent, LatencyHistogram.Snapshot[] last) {
+        double seconds = (now - since) / 1e9;
+        LatencyHistogram.Snapshot interval = LatencyHistogram.Snapshot.EMPTY;
+        for (int kind : new int[] {PUBLIC, PRIVATE}) {
+            LatencyHistogram.Snapshot current = merged(kind);
+            interval = interval.plus(current.minus(last[kind]));
+            last[kind] = current;
+        }
+        long sentMessages = sent[PUBLIC].sum() + sent[PRIVATE].sum();
+        System.out.printf(Locale.ROOT, "[%4ds] sent %.0f msg/s, delivered %.0f msg/s, p50 %s p99 %s p999 %s max %s,"
+                        + " %d online, %d disconnected, %d skipped by server%n",
+                TimeUnit.NANOSECONDS.toSeconds(now - trafficStart), (sentMessages - lastSent[0]) / seconds,
+                interval.count / seconds, millis(interval.percentile(0.50)), millis(interval.percentile(0.99)),
+                millis(interval.percentile(0.999)), millis(interval.max()), online.sum(), disconnected.sum(),
+                skipped.sum());
+        lastSent[0] = sentMessages;
+    }
+
+    private static void summary() {
+        double seconds = (System.nanoTime() - trafficStart) / 1e9;
+        System.out.printf(Locale.ROOT, "%n%-8s %10s %12s %10s %10s %10s %10s %10s%n", "kind", "sent", "received",
+                "recv/s", "p50", "p99", "p999", "max");
+        LatencyHistogram.Snapshot delivered = LatencyHistogram.Snapshot.EMPTY;
+        for (int kind = PUBLIC; kind < KIND_NAMES.length; kind++) {
+            LatencyHistogram.Snapshot latency = merged(kind);
+            if (kind == PUBLIC || kind == PRIVATE) {
+                delivered = delivered.plus(latency);
+            }
+            printRow(KIND_NAMES[kind], sent[kind].sum(), latency, seconds);
+        }
+        printRow("messages", sent[PUBLIC].sum() + sent[PRIVATE].sum(), delivered, seconds);
+        System.out.printf(Locale.ROOT, "%d online at the end, %d failed logins, %d disconnects, %d messages skipped"
+                + " by the server, %d failed uploads%n", online.sum(), failed.sum(), disconnected.sum(), skipped.sum(),
+                uploadErrors.sum());
+    }
+
+    private static void printRow(String name, long sentCount, LatencyHistogram.Snapshot latency, double seconds) {
+        System.out.printf(Locale.ROOT, "%-8s %10d %12d %10.0f %10s %10s %10s %10s%n", name, sentCount,
+                latency.count, latency.count / seconds, millis(latency.percentile(0.50)),
+                millis(latency.percentile(0.99)), millis(latency.percentile(0.999)), millis(latency.max()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1e6);
+    }
+
+    // One selector thread owning every user with index % LOOPS == id; it connects them at its share of the
+    // connect rate and sends its share of the message traffic from its own online users.
+    private static class Loop implements Runnable {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024);
+        private final LatencyHistogram[] latency = new LatencyHistogram[KIND_NAMES.length];
+        private final List<User> users = new ArrayList<>();
+        private final List<User> onlineUsers = new ArrayList<>();
+        private final ArrayDeque<User> retries = new ArrayDeque<>();
+        private final long[] issued = new long[KIND_NAMES.length];
+        private final double share;
+        private int connected;
+
+        Loop(int id) throws IOException {
+            this.selector = Selector.open();
+            for (int i = 0; i < latency.length; i++) {
+                latency[i] = new LatencyHistogram();
+            }
+            for (int index = id; index < USERS; index += LOOPS) {
+                users.add(new User(this, index));
+            }
+            this.share = 1.0 / LOOPS;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            while (true) {
+                try {
+                    selector.select(1);
+                    long now = System.nanoTime();
+                    connectDue(now - start);
+                    retryDue(now);
+                    if (trafficStart != 0 && !trafficStopped) {
+                        sendDue(now);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        User user = (User) key.attachment();
+                        try {
+                            if (key.isConnectable()) {
+                                user.onConnected();
+                            } else {
+                                if (key.isReadable()) {
+                                    user.onReadable(readBuffer);
+                                }
+                                if (key.isValid() && key.isWritable()) {
+                                    user.flush();
+                                }
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            user.fail(e);
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void connectDue(long elapsed) {
+            long due = Math.min(users.size(), (long) (elapsed / 1e9 * CONNECT_RATE * share) + 1);
+            while (connected < due) {
+                users.get(connected++).connect();
+            }
+        }
+
+        private void retryDue(long now) {
+            while (!retries.isEmpty() && retries.peekFirst().retryAt <= now) {
+                retries.pollFirst().sendAuthentication();
+            }
+        }
+
+        private void sendDue(long now) {
+            if (onlineUsers.isEmpty()) {
+                return;
+            }
+            issue(PUBLIC, PUBLIC_RATE, now);
+            issue(PRIVATE, PRIVATE_RATE, now);
+            issue(HISTORY, HISTORY_RATE, now);
+        }
+
+        private void issue(int kind, double rate, long now) {
+            double loopRate = rate * share;
+            if (loopRate <= 0) {
+                return;
+            }
+            // message k is scheduled at k / rate, so it is due as soon as that time has passed
+            long due = (long) ((now - trafficStart) / 1e9 * loopRate) + 1;
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (; issued[kind] < due && !onlineUsers.isEmpty(); issued[kind]++) {
+                long scheduled = trafficStart + (long) (issued[kind] * 1e9 / loopRate);
+                User user = onlineUsers.get(random.nextInt(onlineUsers.size()));
+                if (user.state != State.ONLINE) {
+                    continue;
+                }
+                sent[kind].increment();
+                if (kind == PUBLIC) {
+                    user.send(new Frame(Frame.PUBLIC, payload(scheduled)));
+                } else if (kind == PRIVATE) {
+                    int recipient = (user.index + 1 + random.nextInt(Math.max(1, USERS - 1))) % USERS;
+                    user.send(new Frame(Frame.PRIVATE, userName(recipient) + "\n" + payload(scheduled)));
+                } else {
+                    user.historyRequests.add(scheduled);
+                    user.send(new Frame(Frame.HISTORY, ""));
+                }
+            }
+        }
+    }
+
+    private enum State { IDLE, CONNECTING, NEGOTIATING, AUTHENTICATING, ONLINE, CLOSED }
+
+    private static class User {
+        private final Loop loop;
+        private final int index;
+        private final String name;
+        private final ArrayDeque<Long> historyRequests = new ArrayDeque<>();
+        private State state = State.IDLE;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ArrayDeque<ByteBuffer> pendingWrites;
+        private ByteBuffer partial;
+        private boolean loggingIn;
+        private long connectStart;
+        private long retryAt;
+        private volatile String token;
+
+        User(Loop loop, int index) {
+            this.loop = loop;
+            this.index = index;
+            this.name = userName(index);
+        }
+
+        void connect() {
+            connectStart = System.nanoTime();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (SOURCE_ADDRESSES > 1) {
+                    channel.bind(new InetSocketAddress("127.0.0." + (2 + index % SOURCE_ADDRESSES), 0));
+                }
+                state = State.CONNECTING;
+                if (channel.connect(new InetSocketAddress(HOST, PORT))) {
+                    key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                    negotiate();
+                } else {
+                    key = channel.register(loop.selector, SelectionKey.OP_CONNECT, this);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void onConnected() throws IOException {
+            channel.finishConnect();
+            key.interestOps(SelectionKey.OP_READ);
+            negotiate();
+        }
+
+        private void negotiate() {
+            state = State.NEGOTIATING;
+            write(ByteBuffer.wrap((Frame.NEGOTIATE + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+
+        // Registers on first use; an existing account (from an earlier run) is logged into instead.
+        void sendAuthentication() {
+            if (state != State.AUTHENTICATING) {
+                return;
+            }
+            send(new Frame(Frame.AUTH, (loggingIn ? "login" : "register") + "\n" + name + "\n" + PASSWORD));
+        }
+
+        void send(Frame frame) {
+            write(frame.encode(Frame.Format.BINARY).duplicate());
+        }
+
+        private void write(ByteBuffer buffer) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            try {
+                if (pendingWrites == null || pendingWrites.isEmpty()) {
+                    channel.write(buffer);
+                    if (!buffer.hasRemaining()) {
+                        return;
+                    }
+                    if (pendingWrites == null) {
+                        pendingWrites = new ArrayDeque<>();
+                    }
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+                if (pendingWrites.size() >= MAX_PENDING_WRITES) {
+                    throw new IOException("Server is not reading");
+                }
+                pendingWrites.add(buffer);
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+
+        void flush() throws IOException {
+            while (!pendingWrites.isEmpty()) {
+                ByteBuffer buffer = pendingWrites.peekFirst();
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+                pendingWrites.pollFirst();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            if (channel.read(readBuffer) < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            readBuffer.flip();
+            ByteBuffer input = readBuffer;
+            if (partial != null) {
+                if (partial.remaining() < readBuffer.remaining()) {
+                    ByteBuffer grown = ByteBuffer.allocate(Math.max(partial.position() + readBuffer.remaining(),
+                            partial.capacity() * 2));
+                    partial.flip();
+                    partial = grown.put(partial);
+                }
+                partial.put(readBuffer).flip();
+                input = partial;
+            }
+            if (state == State.NEGOTIATING && !readNegotiationReply(input)) {
+                keepPartial(input);
+                return;
+            }
+            while (input.remaining() >= Integer.BYTES) {
+                int length = input.getInt(input.position());
+                Frame.checkLength(length);
+                if (input.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                ByteBuffer body = input.slice(input.position() + Integer.BYTES, length);
+                input.position(input.position() + Integer.BYTES + length);
+                onFrame(Frame.decode(body));
+            }
+            keepPartial(input);
+        }
+
+        private boolean readNegotiationReply(ByteBuffer input) throws IOException {
+            for (int i = input.position(); i < input.limit(); i++) {
+                if (input.get(i) == '\n') {
+                    byte[] line = new byte[i - input.position()];
+                    input.get(line).get();
+                    if (!new String(line, StandardCharsets.UTF_8).startsWith("OK")) {
+                        throw new IOException("Server does not support binary frames");
+                    }
+                    state = State.AUTHENTICATING;
+                    sendAuthentication();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void keepPartial(ByteBuffer input) {
+            if (!input.hasRemaining()) {
+                partial = null;
+            } else if (input != partial) {
+                partial = ByteBuffer.allocate(Math.max(1024, input.remaining())).put(input);
+            } else {
+                partial.compact();
+            }
+        }
+
+        private void onFrame(Frame frame) throws IOException {
+            if (state == State.AUTHENTICATING) {
+                onAuthReply(frame);
+                return;
+            }
+            switch (frame.type) {
+                case Frame.PUBLIC:
+                    recordDelivery(PUBLIC, frame.text);
+                    break;
+                case Frame.PRIVATE:
+                    if (frame.text.contains("[Private from ")) {
+                        recordDelivery(PRIVATE, frame.text);
+                    }
+                    break;
+                case Frame.HISTORY:
+                    Long scheduled = historyRequests.pollFirst();
+                    if (scheduled != null) {
+                        loop.latency[HISTORY].record(System.nanoTime() - scheduled);
+                    }
+                    break;
+                case Frame.OFFLINE:
+                    send(Frame.fromLine("/ack " + frame.id));
+                    break;
+                case Frame.TEXT:
+                    if (frame.text.startsWith("[SESSION]")) {
+                        token = frame.text.substring(9);
+                    } else if (frame.text.startsWith("*** ") && frame.text.contains(" messages skipped")) {
+                        skipped.add(Long.parseLong(frame.text.substring(4, frame.text.indexOf(' ', 4))));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void onAuthReply(Frame frame) throws IOException {
+            if (frame.text.startsWith("Login successful") || frame.text.startsWith("Registration successful")) {
+                state = State.ONLINE;
+                loop.latency[LOGIN].record(System.nanoTime() - connectStart);
+                loop.onlineUsers.add(this);
+                online.increment();
+            } else if (frame.text.startsWith("Username already exists") && !loggingIn) {
+                loggingIn = true;
+                sendAuthentication();
+            } else if (frame.text.startsWith("Server busy") || frame.text.startsWith("Authentication failed")) {
+                retryAt = System.nanoTime() + RETRY_NANOS;
+                loop.retries.add(this);
+            } else if (frame.type == Frame.AUTH) {
+                throw new IOException(name + ": " + frame.text);
+            }
+        }
+
+        private void recordDelivery(int kind, String text) {
+            int marker = text.lastIndexOf(MARKER);
+            if (marker < 0) {
+                return;
+            }
+            int start = marker + MARKER.length();
+            int end = text.indexOf(' ', start);
+            try {
+                long scheduled = Long.parseLong(text.substring(start, end < 0 ? text.length() : end));
+                loop.latency[kind].record(System.nanoTime() - scheduled);
+            } catch (NumberFormatException e) {
+                // someone else's message that happens to contain the marker
+            }
+        }
+
+        void fail(Exception cause) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            if (state == State.ONLINE) {
+                online.decrement();
+                disconnected.increment();
+                loop.onlineUsers.remove(this);
+            } else {
+                failed.increment();
+                if (failed.sum() <= 10) {
+                    System.out.println("Login failed for " + name + ": " + cause.getMessage());
+                }
+            }
+            state = State.CLOSED;
+            pendingWrites = null;
+            partial = null;
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.IOException;
+
+// Carries chat events between cluster nodes; events are Frames, and the receiving node decides what they mean.
+interface MessageBus {
+    interface Listener {
+        void onEvent(String node, Frame event);
+
+        // What a peer that just (re)connected must know, such as registrations and who is online here. Events can be
+        // dropped when a peer falls behind; the snapshot must not be.
+        Iterable<Frame> snapshot();
+
+        void onPeerDown(String node);
+    }
+
+    String nodeId();
+
+    void start(Listener listener) throws IOException;
+
+    void publish(Frame event);
+
+    // Returns false when the event was not queued for the node: it is not connected or its link is backed up.
+    boolean send(String node, Frame event);
+
+    // -Dchat.bus=tcp selects the built-in TCP bus; any other value is a class name with a no-argument constructor.
+    static MessageBus fromSystemProperties() {
+        String bus = System.getProperty("chat.bus", "none");
+        if (bus.equals("none")) {
+            return standalone();
+        } else if (bus.equals("tcp")) {
+            return TcpMessageBus.fromSystemProperties();
+        }
+        try {
+            return (MessageBus) Class.forName(bus).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot create message bus " + bus, e);
+        }
+    }
+
+    static MessageBus standalone() {
+        return new MessageBus() {
+            @Override
+            public String nodeId() {
+                return "standalone";
+            }
+
+            @Override
+            public void start(Listener listener) {
+            }
+
+            @Override
+            public void publish(Frame event) {
+            }
+
+            @Override
+            public boolean send(String node, Frame event) {
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,477 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+class MessageLog {
+    enum SyncPolicy { BATCH, INTERVAL, NEVER }
+
+    private static final int MAX_BATCH = 1024;
+    private static final int QUEUE_CAPACITY = 65536;
+    private static final int MAX_OPEN_FILES = Integer.getInteger("chat.logOpenFiles", 256);
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    static final String INDEX_SUFFIX = ".idx";
+
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalMillis;
+    private final BlockingQueue<Append> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Map<String, LogFile> files = new ConcurrentHashMap<>();
+    private final HistoryCache cache = HistoryCache.fromSystemProperties();
+    private final Set<LogFile> dirty = new HashSet<>();
+    private final Map<String, LogFile> open = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LogFile> eldest) {
+            if (size() > MAX_OPEN_FILES) {
+                closeChannels(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    };
+    private final Thread committer;
+    private volatile boolean closed;
+    private long lastSync = System.currentTimeMillis();
+
+    MessageLog(SyncPolicy syncPolicy, long syncIntervalMillis) {
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.committer = new Thread(this::run, "message-log");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    static MessageLog fromSystemProperties() {
+        SyncPolicy policy = SyncPolicy.valueOf(System.getProperty("chat.fsync", "INTERVAL").toUpperCase());
+        return new MessageLog(policy, Long.getLong("chat.fsyncIntervalMs", 1000));
+    }
+
+    // Callers append to one file from under that conversation's lock, so ids follow delivery order.
+    CompletableFuture<Void> append(String file, String line) {
+        Append append = new Append(file, (line + "\n").getBytes(StandardCharsets.UTF_8));
+        if (closed) {
+            append.done.completeExceptionally(new IOException("Message log is closed"));
+            return append.done;
+        }
+        LogFile log = logFile(file);
+        long id;
+        log.lock.lock();
+        try {
+            log.ensureIndexed();
+            id = ++log.assigned;
+        } catch (IOException e) {
+            append.done.completeExceptionally(e);
+            return append.done;
+        } finally {
+            log.lock.unlock();
+        }
+        cache.add(file, id, line);
+        try {
+            queue.put(append);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            append.done.completeExceptionally(e);
+        }
+        return append.done;
+    }
+
+    // Only the BATCH policy promises the message is on disk before the sender continues.
+    void awaitCommit(CompletableFuture<Void> commit) {
+        if (syncPolicy != SyncPolicy.BATCH) {
+            return;
+        }
+        try {
+            commit.join();
+        } catch (RuntimeException e) {
+            System.out.println("Message log error: " + e.getMessage());
+        }
+    }
+
+    int queueDepth() {
+        return queue.size();
+    }
+
+    // The id of the newest message appended to the file; callers hold the conversation lock to pair it with an append.
+    long latestId(String file) throws IOException {
+        LogFile log = logFile(file);
+        log.lock.lock();
+        try {
+            log.ensureIndexed();
+            return log.assigned;
+        } finally {
+            log.lock.unlock();
+        }
+    }
+
+    // Returns up to limit messages with ids below beforeId (0 = newest), oldest first.
+    HistoryPage readPage(String file, long beforeId, int limit) throws IOException {
+        LogFile log = logFile(file);
+        long latest;
+        long count;
+        long size;
+        log.lock.lock();
+        try {
+            log.ensureIndexed();
+            latest = log.assigned;
+            count = log.count;
+            size = log.size;
+        } finally {
+            log.lock.unlock();
+        }
+
+        long last = beforeId > 0 ? Math.min(beforeId - 1, latest) : latest;
+        long first = Math.max(1, last - limit + 1);
+        if (latest == 0 || last < first) {
+            return new HistoryPage(first, latest, Collections.emptyList());
+        }
+        List<String> cached = cache.get(file, first, last);
+        if (cached != null) {
+            return new HistoryPage(first, latest, cached);
+        }
+
+        last = Math.min(last, count);
+        if (last < first) {
+            return new HistoryPage(first, latest, Collections.emptyList());
+        }
+
+        try (FileChannel index = FileChannel.open(log.indexPath, StandardOpenOption.READ);
+             FileChannel data = FileChannel.open(log.dataPath, StandardOpenOption.READ)) {
+            int entries = (int) (last - first + 1);
+            ByteBuffer offsets = ByteBuffer.allocate(entries * Long.BYTES + Long.BYTES);
+            readFully(index, offsets, (first - 1) * Long.BYTES,
+                    last < count ? entries + 1 : entries);
+            long start = offsets.getLong(0);
+            long end = last < count ? offsets.getLong(entries * Long.BYTES) : size;
+
+            ByteBuffer bytes = ByteBuffer.allocate((int) (end - start));
+            readFully(data, bytes, start, -1);
+            String text = new String(bytes.array(), 0, bytes.limit(), StandardCharsets.UTF_8);
+            List<String> lines = new ArrayList<>(entries);
+            int from = 0;
+            for (int i = 0; i < entries; i++) {
+                int newline = text.indexOf('\n', from);
+                if (newline < 0) {
+                    newline = text.length();
+                }
+                int to = newline > from && text.charAt(newline - 1) == '\r' ? newline - 1 : newline;
+                lines.add(text.substring(from, to));
+                from = newline + 1;
+            }
+            cache.fill(file, first, lines, latest);
+            return new HistoryPage(first, latest, lines);
+        }
+    }
+
+    String cacheStats() {
+        return cache.stats();
+    }
+
+    void close() {
+        closed = true;
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Append> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            commit(remaining);
+        }
+        synchronized (open) {
+            for (LogFile log : open.values()) {
+                closeChannels(log);
+            }
+            open.clear();
+        }
+    }
+
+    private LogFile logFile(String file) {
+        return files.computeIfAbsent(file, LogFile::new);
+    }
+
+    private void run() {
+        List<Append> batch = new ArrayList<>(MAX_BATCH);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                Append first = queue.poll(Math.max(1, syncIntervalMillis), TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    commit(batch);
+                    batch.clear();
+                }
+                if (syncPolicy == SyncPolicy.INTERVAL
+                        && System.currentTimeMillis() - lastSync >= syncIntervalMillis) {
+                    syncDirty();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void commit(List<Append> batch) {
+        Metrics.LogCommitEvent event = new Metrics.LogCommitEvent();
+        event.begin();
+        Map<String, List<Append>> perFile = new LinkedHashMap<>();
+        for (Append append : batch) {
+            perFile.computeIfAbsent(append.file, file -> new ArrayList<>()).add(append);
+        }
+
+        Map<String, IOException> failures = new HashMap<>();
+        synchronized (open) {
+            for (Map.Entry<String, List<Append>> entry : perFile.entrySet()) {
+                try {
+                    write(logFile(entry.getKey()), entry.getValue());
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    failures.put(entry.getKey(), e);
+                }
+            }
+        }
+        if (syncPolicy == SyncPolicy.BATCH) {
+            syncDirty();
+        }
+
+        long now = System.nanoTime();
+        long bytes = 0;
+        for (Append append : batch) {
+            IOException failure = failures.get(append.file);
+            if (failure != null) {
+                append.done.completeExceptionally(failure);
+            } else {
+                Metrics.persistTime.record(now - append.queuedAt);
+                append.done.complete(null);
+            }
+            bytes += append.bytes.length;
+        }
+        if (event.shouldCommit()) {
+            event.messages = batch.size();
+            event.bytes = bytes;
+            event.synced = syncPolicy == SyncPolicy.BATCH;
+            event.commit();
+        }
+    }
+
+    private void write(LogFile log, List<Append> appends) throws IOException {
+        log.lock.lock();
+        try {
+            log.ensureIndexed();
+            if (log.data == null) {
+                log.data = FileChannel.open(log.dataPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                log.index = FileChannel.open(log.indexPath, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            open.put(log.name, log);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ByteBuffer offsets = ByteBuffer.allocate(appends.size() * Long.BYTES);
+            long offset = log.size;
+            for (Append append : appends) {
+                offsets.putLong(offset);
+                bytes.write(append.bytes, 0, append.bytes.length);
+                offset += append.bytes.length;
+            }
+            offsets.flip();
+            writeFully(log.data, ByteBuffer.wrap(bytes.toByteArray()));
+            writeFully(log.index, offsets);
+            log.size = offset;
+            log.count += appends.size();
+            dirty.add(log);
+        } finally {
+            log.lock.unlock();
+        }
+    }
+
+    private void syncDirty() {
+        synchronized (open) {
+            for (LogFile log : dirty) {
+                if (log.data != null) {
+                    try {
+                        log.data.force(false);
+                        log.index.force(false);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            dirty.clear();
+        }
+        lastSync = System.currentTimeMillis();
+    }
+
+    private void closeChannels(LogFile log) {
+        try {
+            if (dirty.remove(log) && syncPolicy != SyncPolicy.NEVER) {
+                log.data.force(false);
+                log.index.force(false);
+            }
+            log.data.close();
+            log.index.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            log.data = null;
+            log.index = null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int longs)
+            throws IOException {
+        if (longs >= 0) {
+            buffer.limit(longs * Long.BYTES);
+        }
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+    }
+
+    static class HistoryPage {
+        final long firstId;
+        final long total;
+        final List<String> lines;
+
+        HistoryPage(long firstId, long total, List<String> lines) {
+            this.firstId = firstId;
+            this.total = total;
+            this.lines = lines;
+        }
+    }
+
+    private static class Append {
+        private final String file;
+        private final byte[] bytes;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+
+        Append(String file, byte[] bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class LogFile {
+        private final String name;
+        private final Path dataPath;
+        private final Path indexPath;
+        private final ReentrantLock lock = new ReentrantLock();
+        private boolean indexed;
+        private volatile long count;
+        private volatile long size;
+        private long assigned;
+        private FileChannel data;
+        private FileChannel index;
+
+        LogFile(String name) {
+            this.name = name;
+            this.dataPath = Paths.get(name);
+            this.indexPath = Paths.get(name + INDEX_SUFFIX);
+        }
+
+        // Brings the offset index in line with the data file, rebuilding what a crash or an older server left out.
+        void ensureIndexed() throws IOException {
+            if (indexed) {
+                return;
+            }
+            if (!Files.exists(dataPath)) {
+                Files.deleteIfExists(indexPath);
+                indexed = true;
+                return;
+            }
+            try (FileChannel dataChannel = FileChannel.open(dataPath, StandardOpenOption.READ);
+                 FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE,
+                         StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long dataSize = dataChannel.size();
+                long entries = indexChannel.size() / Long.BYTES;
+                long scanFrom = 0;
+                while (entries > 0) {
+                    ByteBuffer last = ByteBuffer.allocate(Long.BYTES);
+                    readFully(indexChannel, last, (entries - 1) * Long.BYTES, 1);
+                    long offset = last.getLong(0);
+                    entries--;
+                    if (offset < dataSize) {
+                        scanFrom = offset;
+                        break;
+                    }
+                }
+                indexChannel.truncate(entries * Long.BYTES);
+
+                ByteBuffer chunk = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+                ByteBuffer offsets = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+                long lineStart = scanFrom;
+                long position = scanFrom;
+                long indexPosition = entries * Long.BYTES;
+                while (position < dataSize) {
+                    chunk.clear();
+                    int read = dataChannel.read(chunk, position);
+                    if (read <= 0) {
+                        break;
+                    }
+                    for (int i = 0; i < read; i++) {
+                        if (chunk.get(i) == '\n') {
+                            if (!offsets.hasRemaining()) {
+                                indexPosition += flushOffsets(indexChannel, offsets, indexPosition);
+                            }
+                            offsets.putLong(lineStart);
+                            entries++;
+                            lineStart = position + i + 1;
+                        }
+                    }
+                    position += read;
+                }
+                if (lineStart < dataSize) {
+                    if (!offsets.hasRemaining()) {
+                        indexPosition += flushOffsets(indexChannel, offsets, indexPosition);
+                    }
+                    offsets.putLong(lineStart);
+                    entries++;
+                    try (FileChannel terminate = FileChannel.open(dataPath, StandardOpenOption.WRITE,
+                            StandardOpenOption.APPEND)) {
+                        writeFully(terminate, ByteBuffer.wrap(new byte[] { '\n' }));
+                    }
+                    dataSize++;
+                }
+                flushOffsets(indexChannel, offsets, indexPosition);
+                count = entries;
+                size = dataSize;
+                assigned = entries;
+            }
+            indexed = true;
+        }
+
+        private static int flushOffsets(FileChannel indexChannel, ByteBuffer offsets, long position)
+                throws IOException {
+            offsets.flip();
+            int written = offsets.remaining();
+            while (offsets.hasRemaining()) {
+                indexChannel.write(offsets, position + written - offsets.remaining());
+            }
+            offsets.clear();
+            return written;
+        }
+    }
+}
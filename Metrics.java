@@ -0,0 +1,264 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+// Server counters, gauges and latency histograms. Hot paths only add to LongAdders; values are summed when JMX
+// (chat:type=Metrics) or the text endpoint on 127.0.0.1:<chat.metricsPort>/metrics reads them.
+// Histogram quantiles cover the whole uptime, as in a Prometheus summary without a window.
+final class Metrics {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_SUFFIXES = {"_p50", "_p99", "_p999"};
+
+    private static final Map<String, String> descriptions = new LinkedHashMap<>();
+    private static final Map<String, LongAdder> counters = new LinkedHashMap<>();
+    private static final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private static final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+
+    static final LongAdder connectionsAccepted = counter("chat_connections_accepted_total",
+            "Client connections accepted");
+    static final LongAdder authFailures = counter("chat_auth_failures_total",
+            "Logins and registrations that were refused or failed");
+    static final LongAdder publicMessages = counter("chat_public_messages_total", "Public messages sent");
+    static final LongAdder privateMessages = counter("chat_private_messages_total", "Private messages sent");
+    static final LongAdder roomMessages = counter("chat_room_messages_total", "Room messages sent");
+    static final LongAdder fanOutDeliveries = counter("chat_fanout_deliveries_total",
+            "Frames queued to local sessions by public fan-out");
+    static final LongAdder fileBytesReceived = counter("chat_file_received_bytes_total", "Upload bytes received");
+    static final LongAdder fileBytesSent = counter("chat_file_sent_bytes_total", "Download bytes sent");
+    static final LatencyHistogram authTime = histogram("chat_auth_seconds",
+            "Login and registration time, including password hashing");
+    static final LatencyHistogram fanOutTime = histogram("chat_fanout_seconds",
+            "Time to queue one frame to every connected session");
+    static final LatencyHistogram persistTime = histogram("chat_persist_seconds",
+            "Time from a message log append until it is written, and synced under chat.fsync=batch");
+
+    private Metrics() {
+    }
+
+    private static LongAdder counter(String name, String description) {
+        LongAdder counter = new LongAdder();
+        descriptions.put(name, description);
+        counters.put(name, counter);
+        return counter;
+    }
+
+    private static LatencyHistogram histogram(String name, String description) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        descriptions.put(name, description);
+        histograms.put(name, histogram);
+        return histogram;
+    }
+
+    // Gauges are read on demand; register them before start().
+    static void gauge(String name, String description, LongSupplier value) {
+        descriptions.put(name, description);
+        gauges.put(name, value);
+    }
+
+    static void start(int httpPort) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(),
+                    new ObjectName("chat:type=Metrics"));
+        } catch (JMException e) {
+            System.out.println("Unable to register JMX metrics: " + e.getMessage());
+        }
+        if (httpPort <= 0) {
+            return;
+        }
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), httpPort), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics available at http://127.0.0.1:" + httpPort + "/metrics");
+        } catch (IOException e) {
+            System.out.println("Unable to start the metrics endpoint: " + e.getMessage());
+        }
+    }
+
+    // Prometheus text exposition format.
+    static String render() {
+        StringBuilder out = new StringBuilder();
+        counters.forEach((name, counter) -> header(out, name, "counter").append(name).append(' ')
+                .append(counter.sum()).append('\n'));
+        gauges.forEach((name, gauge) -> header(out, name, "gauge").append(name).append(' ')
+                .append(gauge.getAsLong()).append('\n'));
+        histograms.forEach((name, histogram) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            header(out, name, "summary");
+            for (double quantile : QUANTILES) {
+                out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(snapshot.percentile(quantile))).append('\n');
+            }
+            out.append(name).append("_sum ").append(seconds(snapshot.sumNanos)).append('\n');
+            out.append(name).append("_count ").append(snapshot.count).append('\n');
+            out.append("# TYPE ").append(name).append("_max gauge\n");
+            out.append(name).append("_max ").append(seconds(snapshot.max())).append('\n');
+        });
+        return out.toString();
+    }
+
+    private static StringBuilder header(StringBuilder out, String name, String type) {
+        return out.append("# HELP ").append(name).append(' ').append(descriptions.get(name)).append('\n')
+                .append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.6f", nanos / 1e9);
+    }
+
+    // Flat name -> value view for JMX: histograms appear as _count, _sum, _p50, _p99, _p999 and _max (seconds).
+    private static Map<String, Number> values() {
+        Map<String, Number> values = new LinkedHashMap<>();
+        counters.forEach((name, counter) -> values.put(name, counter.sum()));
+        gauges.forEach((name, gauge) -> values.put(name, gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            values.put(name + "_count", snapshot.count);
+            values.put(name + "_sum", snapshot.sumNanos / 1e9);
+            for (int i = 0; i < QUANTILES.length; i++) {
+                values.put(name + QUANTILE_SUFFIXES[i], snapshot.percentile(QUANTILES[i]) / 1e9);
+            }
+            values.put(name + "_max", snapshot.max() / 1e9);
+        });
+        return values;
+    }
+
+    private static class MetricsMBean implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Number value = values().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            Map<String, Number> values = values();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                if (values.containsKey(attribute)) {
+                    list.add(new Attribute(attribute, values.get(attribute)));
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            values().forEach((name, value) -> {
+                String base = descriptions.containsKey(name) ? name : name.substring(0, name.lastIndexOf('_'));
+                attributes.add(new MBeanAttributeInfo(name, value.getClass().getName(), descriptions.get(base),
+                        true, false, false));
+            });
+            return new MBeanInfo(Metrics.class.getName(), "Chat server metrics",
+                    attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    // JFR events, recorded only while a recording has them enabled (e.g. -XX:StartFlightRecording). The per-message
+    // events default to a 1 ms threshold so only slow ones are kept; a .jfc file or JFR.configure can lower it.
+    @Name("chat.Broadcast")
+    @Label("Broadcast")
+    @Category("Chat")
+    @Description("A public message saved and fanned out to local sessions")
+    @Threshold("1 ms")
+    static class BroadcastEvent extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Recipients")
+        int recipients;
+    }
+
+    @Name("chat.PrivateMessage")
+    @Label("Private Message")
+    @Category("Chat")
+    @Description("A private message saved and routed to its recipient")
+    @Threshold("1 ms")
+    static class PrivateMessageEvent extends Event {
+        @Label("Sender")
+        String sender;
+
+        @Label("Recipient")
+        String recipient;
+
+        @Label("Route")
+        @Description("local, remote, offline or unknown")
+        String route;
+    }
+
+    @Name("chat.SaveMessage")
+    @Label("Save Message")
+    @Category("Chat")
+    @Description("A message appended to the log queue and the search index")
+    @Threshold("1 ms")
+    static class SaveMessageEvent extends Event {
+        @Label("File")
+        String file;
+
+        @Label("Size")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("chat.LogCommit")
+    @Label("Message Log Commit")
+    @Category("Chat")
+    @Description("One batch written by the message log thread")
+    static class LogCommitEvent extends Event {
+        @Label("Messages")
+        int messages;
+
+        @Label("Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Synced")
+        boolean synced;
+    }
+}
@@ -0,0 +1,386 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+class NioChatServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_BYTES = 1 << 20;
+    private static final int WRITE_BATCH = 256;
+    // Handling a frame may wait for an fsync or read history from disk, so it never runs on an event loop.
+    private static final ExecutorService handlers = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final int port;
+    private final EventLoop[] loops;
+
+    NioChatServer(int port, int loopCount) {
+        this.port = port;
+        this.loops = new EventLoop[Math.max(1, loopCount)];
+    }
+
+    void start() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "chat-nio-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("NIO engine started with " + loops.length + " event loops.");
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            int next = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                Metrics.connectionsAccepted.increment();
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            }
+        }
+    }
+
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> pendingWrites = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestWrite(NioSession session) {
+            pendingWrites.add(session);
+            selector.wakeup();
+        }
+
+        void execute(Runnable task) {
+            pendingTasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    runPending();
+                    flushPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioSession session = (NioSession) key.attachment();
+                        if (!key.isValid()) {
+                            session.closeNow();
+                            continue;
+                        }
+                        try {
+                            if (key.isReadable()) {
+                                session.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                session.flush();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            session.closeNow();
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new NioSession(this, channel, key));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void runPending() {
+            Runnable task;
+            while ((task = pendingTasks.poll()) != null) {
+                task.run();
+            }
+        }
+
+        private void flushPending() {
+            NioSession session;
+            while ((session = pendingWrites.poll()) != null) {
+                try {
+                    session.flush();
+                } catch (IOException | CancelledKeyException e) {
+                    session.closeNow();
+                }
+            }
+        }
+    }
+
+    private static class NioSession implements ChatSession {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final OutboundQueue outbound = new OutboundQueue();
+        private final AtomicBoolean writeRequested = new AtomicBoolean();
+        private ByteBuffer[] pendingWrite;
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private ByteBuffer frameBuffer;
+        private List<Frame> held;
+        private volatile String username;
+        private volatile boolean closing;
+        private volatile boolean slowConsumer;
+        private volatile boolean closed;
+
+        NioSession(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            readBuffer.clear();
+            int read = channel.read(readBuffer);
+            if (read < 0) {
+                closeNow();
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining() && !closing) {
+                if (frameBuffer != null) {
+                    readFrames(readBuffer);
+                    return;
+                }
+                byte b = readBuffer.get();
+                if (b == '\n') {
+                    onLine(decodeLine());
+                } else if (lineBuffer.size() >= MAX_LINE_BYTES) {
+                    sendMessage("Message too long.");
+                    close();
+                } else {
+                    lineBuffer.write(b);
+                }
+            }
+        }
+
+        private String decodeLine() {
+            byte[] bytes = lineBuffer.toByteArray();
+            lineBuffer.reset();
+            int length = bytes.length;
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private void onLine(String line) {
+            if (username == null && ChatServer.negotiate(this, line) != null) {
+                frameBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            } else {
+                onFrame(Frame.fromLine(line));
+            }
+        }
+
+        // Appends to the frame buffer and dispatches every complete length-prefixed frame in it.
+        private void readFrames(ByteBuffer readBuffer) throws IOException {
+            if (frameBuffer.remaining() < readBuffer.remaining()) {
+                int needed = frameBuffer.position() + readBuffer.remaining();
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, frameBuffer.capacity() * 2));
+                frameBuffer.flip();
+                frameBuffer = grown.put(frameBuffer);
+            }
+            frameBuffer.put(readBuffer);
+            frameBuffer.flip();
+            while (frameBuffer.remaining() >= Integer.BYTES && !closing) {
+                int length = frameBuffer.getInt(frameBuffer.position());
+                Frame.checkLength(length);
+                if (frameBuffer.remaining() < Integer.BYTES + length) {
+                    break;
+                }
+                ByteBuffer body = frameBuffer.slice(frameBuffer.position() + Integer.BYTES, length);
+                frameBuffer.position(frameBuffer.position() + Integer.BYTES + length);
+                onFrame(Frame.decode(body));
+            }
+            frameBuffer.compact();
+            if (frameBuffer.position() == 0 && frameBuffer.capacity() > READ_BUFFER_SIZE) {
+                frameBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+        }
+
+        // One frame per session is handled at a time, off the event loop. Reading pauses meanwhile, and frames already
+        // read are held and replayed on the event loop afterwards, so they keep their order.
+        private void onFrame(Frame frame) {
+            if (held != null) {
+                held.add(frame);
+                return;
+            }
+            held = new ArrayList<>();
+            setReading(false);
+            if (username == null) {
+                ChatServer.authenticate(this, frame).thenAccept(user -> loop.execute(() -> onLogin(user)));
+            } else {
+                handlers.execute(() -> {
+                    boolean open = false;
+                    try {
+                        open = ChatServer.handleFrame(this, frame);
+                    } finally {
+                        boolean keepOpen = open;
+                        loop.execute(() -> onHandled(keepOpen));
+                    }
+                });
+            }
+        }
+
+        private void onLogin(String user) {
+            if (closed) {
+                held = null;
+                if (user != null) {
+                    username = user;
+                    ChatServer.sessionClosed(this);
+                }
+                return;
+            }
+            username = user;
+            if (user != null) {
+                ChatServer.sessionJoined(this);
+            }
+            replayHeld();
+        }
+
+        private void onHandled(boolean open) {
+            if (!open) {
+                held = null;
+                close();
+            } else if (!closed) {
+                replayHeld();
+            }
+        }
+
+        private void replayHeld() {
+            List<Frame> frames = held;
+            held = null;
+            for (Frame frame : frames) {
+                onFrame(frame);
+            }
+            if (held == null) {
+                setReading(true);
+            }
+        }
+
+        private void setReading(boolean reading) {
+            if (key.isValid()) {
+                key.interestOps(reading ? key.interestOps() | SelectionKey.OP_READ
+                        : key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+
+        void flush() throws IOException {
+            writeRequested.set(false);
+            if (closed) {
+                return;
+            }
+            if (slowConsumer) {
+                ChatServer.slowConsumer(this);
+                closeNow();
+                return;
+            }
+            while (true) {
+                if (pendingWrite == null) {
+                    List<ByteBuffer> batch = outbound.poll(WRITE_BATCH);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    pendingWrite = batch.toArray(new ByteBuffer[0]);
+                }
+                channel.write(pendingWrite);
+                if (pendingWrite[pendingWrite.length - 1].hasRemaining()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                pendingWrite = null;
+            }
+            if (closing) {
+                closeNow();
+            } else if (key.isValid()) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closing = true;
+            outbound.close();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            ChatServer.sessionClosed(this);
+        }
+
+        private void scheduleFlush() {
+            if (writeRequested.compareAndSet(false, true)) {
+                loop.requestWrite(this);
+            }
+        }
+
+        @Override
+        public String getUsername() {
+            return username;
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (closed) {
+                return;
+            }
+            if (!outbound.offer(frame)) {
+                slowConsumer = true;
+            }
+            scheduleFlush();
+        }
+
+        @Override
+        public OutboundQueue getOutboundQueue() {
+            return outbound;
+        }
+
+        @Override
+        public void close() {
+            closing = true;
+            scheduleFlush();
+        }
+    }
+}
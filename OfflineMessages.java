@@ -0,0 +1,280 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+// Each recipient has <user>.log of queued lines and <user>.ack holding the byte offset acknowledged so far.
+// A line that copies a logged message is stored as "@<chat file>\t<id>\t<line>", so a replay can supersede it.
+class OfflineMessages {
+    private static final int PAGE_SIZE = Integer.getInteger("chat.offlinePageSize", 100);
+    private static final int LOCK_STRIPES = 64;
+
+    private final File directory;
+    private final ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+    private final Map<String, Long> inFlight = new ConcurrentHashMap<>();
+
+    OfflineMessages(String directoryName) {
+        this.directory = new File(directoryName);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    void enqueue(String recipient, String line) throws IOException {
+        append(recipient, line);
+    }
+
+    void enqueue(String recipient, String file, long id, String line) throws IOException {
+        append(recipient, "@" + file + "\t" + id + "\t" + line);
+    }
+
+    private void append(String recipient, String line) throws IOException {
+        ReentrantLock lock = lockFor(recipient);
+        lock.lock();
+        try {
+            directory.mkdirs();
+            try (FileChannel log = FileChannel.open(logFile(recipient).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer record = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+                while (record.hasRemaining()) {
+                    log.write(record);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sends the next unacknowledged page; the frame id is the offset the client acknowledges with /ack.
+    void deliverNext(ChatSession session) {
+        String user = session.getUsername();
+        ReentrantLock lock = lockFor(user);
+        lock.lock();
+        try {
+            File log = logFile(user);
+            if (!log.exists()) {
+                return;
+            }
+            long acknowledged = readAck(user);
+            String header = "Messages received while you were offline:";
+            StringJoiner page = new StringJoiner("\n");
+            page.add(header);
+            int pageBytes = header.length();
+            long end = acknowledged;
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        Channels.newInputStream(channel.position(acknowledged)), StandardCharsets.UTF_8));
+                String record;
+                for (int i = 0; i < PAGE_SIZE && (record = reader.readLine()) != null; i++) {
+                    String line = text(record);
+                    int lineBytes = Frame.utf8Length(line);
+                    // a page is one frame, so it ends early rather than outgrow the frame limit
+                    if (i > 0 && pageBytes + 1 + lineBytes > Frame.MAX_PAYLOAD_BYTES) {
+                        break;
+                    }
+                    page.add(Frame.clip(line, Frame.MAX_PAYLOAD_BYTES - pageBytes - 1));
+                    pageBytes += 1 + lineBytes;
+                    end += Frame.utf8Length(record) + 1;
+                }
+            }
+            if (end == acknowledged) {
+                remove(user);
+                return;
+            }
+            inFlight.put(user, end);
+            session.send(new Frame(Frame.OFFLINE, end, page.toString()));
+        } catch (IOException e) {
+            session.sendMessage("Error reading offline messages.");
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // For lines that arrive while the user is online; a page still waiting for its /ack already leads on to them.
+    void deliverIfIdle(ChatSession session) {
+        ReentrantLock lock = lockFor(session.getUsername());
+        lock.lock();
+        try {
+            if (!inFlight.containsKey(session.getUsername())) {
+                deliverNext(session);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Hands the unacknowledged lines to another node as pages of at most maxBytes. What send accepts counts as
+    // acknowledged here; from the first page it refuses on, the lines stay queued.
+    void forward(String user, int maxBytes, Predicate<String> send) {
+        ReentrantLock lock = lockFor(user);
+        lock.lock();
+        try {
+            File log = logFile(user);
+            if (!log.exists()) {
+                return;
+            }
+            inFlight.remove(user);
+            long acknowledged = readAck(user);
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ)) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        Channels.newInputStream(channel.position(acknowledged)), StandardCharsets.UTF_8));
+                StringJoiner page = new StringJoiner("\n");
+                int pageBytes = -1;
+                long end = acknowledged;
+                boolean refused = false;
+                String record;
+                while (!refused && (record = reader.readLine()) != null) {
+                    String line = Frame.clip(text(record), maxBytes);
+                    int lineBytes = Frame.utf8Length(line);
+                    if (pageBytes >= 0 && pageBytes + 1 + lineBytes > maxBytes) {
+                        refused = !send.test(page.toString());
+                        if (!refused) {
+                            acknowledged = end;
+                            page = new StringJoiner("\n");
+                            pageBytes = -1;
+                        }
+                    }
+                    page.add(line);
+                    pageBytes += 1 + lineBytes;
+                    end += Frame.utf8Length(record) + 1;
+                }
+                if (!refused && pageBytes >= 0 && send.test(page.toString())) {
+                    acknowledged = end;
+                }
+            }
+            if (acknowledged >= log.length()) {
+                remove(user);
+            } else {
+                Files.writeString(ackFile(user).toPath(), Long.toString(acknowledged), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Only the page currently in flight can be acknowledged; the queue is deleted once it is fully delivered.
+    void acknowledge(ChatSession session, long offset) {
+        String user = session.getUsername();
+        ReentrantLock lock = lockFor(user);
+        lock.lock();
+        try {
+            if (!inFlight.remove(user, offset)) {
+                return;
+            }
+            if (offset >= logFile(user).length()) {
+                remove(user);
+            } else {
+                Files.writeString(ackFile(user).toPath(), Long.toString(offset), StandardCharsets.UTF_8);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+        deliverNext(session);
+    }
+
+    // Drops the unacknowledged copies of messages a resumed session was just replayed, i.e. those in a replayed file
+    // with an id above the last one the replay left out. Everything else stays queued for deliverNext.
+    void dropReplayed(String user, Map<String, Long> replayedAfter) {
+        ReentrantLock lock = lockFor(user);
+        lock.lock();
+        try {
+            inFlight.remove(user);
+            File log = logFile(user);
+            if (!log.exists()) {
+                return;
+            }
+            File kept = new File(directory, user + ".log.tmp");
+            boolean any = false;
+            try (FileChannel channel = FileChannel.open(log.toPath(), StandardOpenOption.READ);
+                 Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(kept),
+                         StandardCharsets.UTF_8))) {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        Channels.newInputStream(channel.position(readAck(user))), StandardCharsets.UTF_8));
+                String record;
+                while ((record = reader.readLine()) != null) {
+                    if (!replayed(record, replayedAfter)) {
+                        writer.write(record);
+                        writer.write('\n');
+                        any = true;
+                    }
+                }
+            }
+            if (any) {
+                Files.move(kept.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                Files.deleteIfExists(ackFile(user).toPath());
+            } else {
+                Files.deleteIfExists(kept.toPath());
+                remove(user);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static boolean replayed(String record, Map<String, Long> replayedAfter) {
+        if (!record.startsWith("@")) {
+            return false;
+        }
+        String[] fields = record.split("\t", 3);
+        Long after = fields.length == 3 ? replayedAfter.get(fields[0].substring(1)) : null;
+        try {
+            return after != null && Long.parseLong(fields[1]) > after;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static String text(String record) {
+        if (!record.startsWith("@")) {
+            return record;
+        }
+        String[] fields = record.split("\t", 3);
+        return fields.length == 3 ? fields[2] : record;
+    }
+
+    private long readAck(String user) throws IOException {
+        File ack = ackFile(user);
+        if (!ack.exists()) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(Files.readString(ack.toPath(), StandardCharsets.UTF_8).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void remove(String user) throws IOException {
+        Files.deleteIfExists(logFile(user).toPath());
+        Files.deleteIfExists(ackFile(user).toPath());
+    }
+
+    private File logFile(String user) {
+        return new File(directory, user + ".log");
+    }
+
+    private File ackFile(String user) {
+        return new File(directory, user + ".ack");
+    }
+
+    private ReentrantLock lockFor(String user) {
+        return locks[Math.floorMod(user.hashCode(), locks.length)];
+    }
+}
@@ -0,0 +1,229 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+class OutboundQueue {
+    enum OverflowPolicy { DROP_OLDEST, COALESCE, DISCONNECT }
+
+    static final int CAPACITY = Integer.getInteger("chat.outboundQueueSize", 1024);
+    static final OverflowPolicy POLICY = OverflowPolicy.valueOf(
+            System.getProperty("chat.overflowPolicy", "DROP_OLDEST").toUpperCase());
+
+    private final ArrayDeque<Entry> messages = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private int skipped;
+    private boolean closed;
+    private int highWatermark;
+    private long enqueued;
+    private long dropped;
+    private boolean overflowed;
+    private volatile Frame.Format format = Frame.Format.TEXT;
+
+    OutboundQueue() {
+        this(CAPACITY, POLICY);
+    }
+
+    OutboundQueue(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    // Returns false when the consumer is too slow and should be disconnected.
+    boolean offer(Frame frame) {
+        ByteBuffer message = frame.encode(format);
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            if (messages.size() >= capacity) {
+                overflowed = true;
+                switch (policy) {
+                    case DROP_OLDEST:
+                        messages.pollFirst();
+                        dropped++;
+                        break;
+                    case COALESCE:
+                        coalesce();
+                        if (messages.size() >= capacity) {
+                            dropped++;
+                            return false;
+                        }
+                        break;
+                    case DISCONNECT:
+                        dropped++;
+                        return false;
+                }
+            }
+            messages.addLast(new Entry(frame.type, message));
+            enqueued++;
+            highWatermark = Math.max(highWatermark, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Unlike offer, never evicts: returns false when the queue is full or closed, so the caller keeps the frame.
+    boolean offerIfRoom(Frame frame) {
+        ByteBuffer message = frame.encode(format);
+        lock.lock();
+        try {
+            if (closed || messages.size() >= capacity) {
+                return false;
+            }
+            messages.addLast(new Entry(frame.type, message));
+            enqueued++;
+            highWatermark = Math.max(highWatermark, messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    List<ByteBuffer> poll(int max) {
+        lock.lock();
+        try {
+            return drain(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Blocks until messages are available; an empty batch means the queue was closed and drained.
+    List<ByteBuffer> take(int max) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && skipped == 0 && !closed) {
+                notEmpty.await();
+            }
+            return drain(max);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Frames are shared between recipients, so each one is handed out as its own view.
+    private List<ByteBuffer> drain(int max) {
+        List<ByteBuffer> batch = new ArrayList<>(Math.min(max, messages.size() + 1));
+        if (skipped > 0) {
+            batch.add(new Frame(Frame.TEXT, "*** " + skipped + " messages skipped because your connection is too slow."
+                    + " Use /history to catch up. ***").encode(format));
+            skipped = 0;
+        }
+        while (batch.size() < max && !messages.isEmpty()) {
+            batch.add(messages.pollFirst().message.duplicate());
+        }
+        return batch;
+    }
+
+    // Drops chat the client can fetch again with /history, replaced by one "skipped" notice, and presence deltas,
+    // which the next snapshot replaces. Replies, offline pages awaiting [ACK] and download notices are kept.
+    private void coalesce() {
+        int before = messages.size();
+        int chat = 0;
+        for (Iterator<Entry> entries = messages.iterator(); entries.hasNext(); ) {
+            byte type = entries.next().type;
+            if (type == Frame.PUBLIC || type == Frame.ROOM) {
+                chat++;
+                entries.remove();
+            } else if (type == Frame.PRESENCE) {
+                entries.remove();
+            }
+        }
+        skipped += chat;
+        dropped += before - messages.size();
+    }
+
+    // Frames offered after this call use the new wire format; earlier ones keep the format they were queued in.
+    void setFormat(Frame.Format format) {
+        this.format = format;
+    }
+
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty() && skipped == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int depth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int highWatermark() {
+        lock.lock();
+        try {
+            return highWatermark;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long enqueued() {
+        lock.lock();
+        try {
+            return enqueued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean hasOverflowed() {
+        lock.lock();
+        try {
+            return overflowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    OverflowPolicy policy() {
+        return policy;
+    }
+
+    private static class Entry {
+        final byte type;
+        final ByteBuffer message;
+
+        Entry(byte type, ByteBuffer message) {
+            this.type = type;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Joins and leaves are collected between flushes and published as one versioned delta:
+// "/presence <from> <to> +alice -bob". A client that misses a version asks for "/users", answered by
+// "/users <version> alice,bob,...". A user who joins and leaves within one window never appears at all.
+class Presence {
+    private static final int MAX_CHANGES_PER_FRAME = 1000;
+
+    private final Set<String> online = new TreeSet<>();
+    private final Map<String, Boolean> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long version;
+
+    void joined(String user) {
+        change(user, true);
+    }
+
+    void left(String user) {
+        change(user, false);
+    }
+
+    private void change(String user, boolean joined) {
+        lock.lock();
+        try {
+            if (online.contains(user) == joined) {
+                pending.remove(user);
+            } else {
+                pending.put(user, joined);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Applies the pending changes and returns the deltas to fan out, one version per frame.
+    List<Frame> flush() {
+        lock.lock();
+        try {
+            List<Frame> deltas = new ArrayList<>();
+            while (!pending.isEmpty()) {
+                StringBuilder delta = new StringBuilder();
+                int changes = 0;
+                Iterator<Map.Entry<String, Boolean>> iterator = pending.entrySet().iterator();
+                while (iterator.hasNext() && changes++ < MAX_CHANGES_PER_FRAME) {
+                    Map.Entry<String, Boolean> change = iterator.next();
+                    iterator.remove();
+                    if (change.getValue()) {
+                        online.add(change.getKey());
+                    } else {
+                        online.remove(change.getKey());
+                    }
+                    delta.append(change.getValue() ? " +" : " -").append(change.getKey());
+                }
+                deltas.add(new Frame(Frame.PRESENCE, "/presence " + version + " " + ++version + delta));
+            }
+            return deltas;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Frame snapshot() {
+        lock.lock();
+        try {
+            StringJoiner users = new StringJoiner(",", "/users " + version + " ", "");
+            online.forEach(users::add);
+            return new Frame(Frame.PRESENCE, users.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Client side of session resume: the server's [SESSION] token and the last [SEQ] id seen in each conversation.
+class ResumeState {
+    private static final long FIRST_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final Map<String, Long> lastSeen = new ConcurrentHashMap<>();
+    private volatile String token;
+
+    // Returns true for control lines, which are not shown to the user.
+    boolean observe(String line) {
+        if (line.startsWith("[SESSION]")) {
+            token = line.substring(9);
+            return true;
+        } else if (line.startsWith("[SEQ]")) {
+            String[] cursor = line.substring(5).split(" ");
+            if (cursor.length == 2) {
+                try {
+                    lastSeen.merge(cursor[0], Long.parseLong(cursor[1]), Math::max);
+                } catch (NumberFormatException e) {
+                    // not a cursor we understand
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    String token() {
+        return token;
+    }
+
+    boolean canResume() {
+        return token != null;
+    }
+
+    // Tokens are single use; the server sends a fresh one after a successful resume.
+    String resumeCommand() {
+        StringBuilder command = new StringBuilder("/resume ").append(token);
+        lastSeen.forEach((conversation, id) -> command.append(' ').append(conversation).append(' ').append(id));
+        return command.toString();
+    }
+
+    void forget() {
+        token = null;
+    }
+
+    // Exponential backoff with jitter, so clients dropped together do not reconnect together.
+    static long backoffMillis(int attempt) {
+        long ceiling = Math.min(MAX_BACKOFF_MILLIS, FIRST_BACKOFF_MILLIS << Math.min(attempt, 6));
+        return ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+    }
+}
@@ -0,0 +1,154 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Room membership is replayed from an append-only file of "+room:user" and "-room:user" lines.
+class Rooms {
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final String LOG_DIRECTORY = "rooms";
+
+    private final File file;
+    private final Map<String, Set<String>> members = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> roomsByUser = new ConcurrentHashMap<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private Writer writer;
+
+    Rooms(String fileName) {
+        this.file = new File(fileName);
+    }
+
+    void load() {
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.indexOf(':');
+                    if (separator > 1) {
+                        String room = line.substring(1, separator);
+                        String user = line.substring(separator + 1);
+                        if (line.charAt(0) == '+') {
+                            add(room, user);
+                        } else if (line.charAt(0) == '-') {
+                            remove(room, user);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        new File(LOG_DIRECTORY).mkdirs();
+        for (String room : members.keySet()) {
+            migrateLog(room);
+        }
+
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("Rooms loaded: " + members.size() + ".");
+    }
+
+    static boolean isValidName(String room) {
+        if (room.isEmpty() || room.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Room logs have their own directory, apart from the <user>_<user>.txt files of private chats.
+    static String logFile(String room) {
+        return LOG_DIRECTORY + "/" + room + ".txt";
+    }
+
+    // Logs from before the rooms directory were kept as room_<room>.txt next to the private chats.
+    private static void migrateLog(String room) {
+        File log = new File(logFile(room));
+        File legacy = new File("room_" + room + ".txt");
+        if (!legacy.isFile() || log.exists()) {
+            return;
+        }
+        try {
+            Files.move(legacy.toPath(), log.toPath());
+            File legacyIndex = new File(legacy.getPath() + MessageLog.INDEX_SUFFIX);
+            if (legacyIndex.isFile()) {
+                Files.move(legacyIndex.toPath(), new File(log.getPath() + MessageLog.INDEX_SUFFIX).toPath());
+            }
+            System.out.println("Moved " + legacy + " to " + log + ".");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    boolean join(String room, String user) {
+        if (!add(room, user)) {
+            return false;
+        }
+        record("+" + room + ":" + user);
+        return true;
+    }
+
+    boolean leave(String room, String user) {
+        if (!remove(room, user)) {
+            return false;
+        }
+        record("-" + room + ":" + user);
+        return true;
+    }
+
+    Set<String> members(String room) {
+        Set<String> result = members.get(room);
+        return result != null ? Collections.unmodifiableSet(result) : Collections.emptySet();
+    }
+
+    Set<String> names() {
+        return Collections.unmodifiableSet(members.keySet());
+    }
+
+    Set<String> roomsOf(String user) {
+        Set<String> result = roomsByUser.get(user);
+        return result != null ? Collections.unmodifiableSet(result) : Collections.emptySet();
+    }
+
+    private boolean add(String room, String user) {
+        roomsByUser.computeIfAbsent(user, key -> ConcurrentHashMap.newKeySet()).add(room);
+        return members.computeIfAbsent(room, key -> ConcurrentHashMap.newKeySet()).add(user);
+    }
+
+    private boolean remove(String room, String user) {
+        Set<String> rooms = roomsByUser.get(user);
+        if (rooms != null) {
+            rooms.remove(room);
+        }
+        Set<String> roomMembers = members.get(room);
+        return roomMembers != null && roomMembers.remove(user);
+    }
+
+    private void record(String line) {
+        writeLock.lock();
+        try {
+            if (writer != null) {
+                writer.write(line + "\n");
+                writer.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,661 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Inverted index over the conversation logs. New messages go to an in-memory buffer that is flushed to an immutable
+// segment file; segments of the same level are merged ten at a time, so a search reads O(log n) segments.
+// A posting is (document number, file id, message id); document numbers grow with every message, so the newest
+// results are found first and a page stops early.
+class SearchIndex {
+    private static final int FLUSH_DOCS = Integer.getInteger("chat.searchFlushDocs", 20_000);
+    private static final int MERGE_FACTOR = 10;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final int SEGMENT_MAGIC = 0x53454731;
+
+    static class Hit {
+        final long docNo;
+        final String file;
+        final long id;
+
+        Hit(long docNo, String file, long id) {
+            this.docNo = docNo;
+            this.file = file;
+            this.id = id;
+        }
+    }
+
+    // The installed segments and the buffer being written out change together in one write, so a search sees a
+    // frozen buffer's documents exactly once: before the flush, or in its new segment.
+    private static class View {
+        final List<Segment> segments;
+        final HashMap<String, Postings> flushing;
+
+        View(List<Segment> segments, HashMap<String, Postings> flushing) {
+            this.segments = segments;
+            this.flushing = flushing;
+        }
+    }
+
+    private final File directory;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Map<String, Integer> fileIds = new HashMap<>();
+    private final List<String> files = new ArrayList<>();
+    private final Map<String, Long> indexedThrough = new HashMap<>();
+    private final ExecutorService merger = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "search-merge");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private HashMap<String, Postings> buffer = new HashMap<>();
+    private int bufferedDocs;
+    private volatile View view = new View(Collections.emptyList(), null);
+    private long nextDocNo = 1;
+    private int nextSegment = 1;
+
+    SearchIndex(String directoryName) {
+        this.directory = new File(directoryName);
+    }
+
+    void load() throws IOException {
+        directory.mkdirs();
+        File manifest = new File(directory, "manifest.properties");
+        List<Segment> loaded = new ArrayList<>();
+        if (manifest.exists()) {
+            Properties properties = new Properties();
+            try (Reader reader = new InputStreamReader(new FileInputStream(manifest), StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+            nextDocNo = Long.parseLong(properties.getProperty("nextDocNo", "1"));
+            nextSegment = Integer.parseInt(properties.getProperty("nextSegment", "1"));
+            for (int i = 0; properties.containsKey("file." + i); i++) {
+                String file = properties.getProperty("file." + i);
+                fileIds.put(file, i);
+                files.add(file);
+                indexedThrough.put(file, Long.parseLong(properties.getProperty("through." + i, "0")));
+            }
+            for (String name : properties.getProperty("segments", "").split(",")) {
+                if (!name.isEmpty()) {
+                    loaded.add(Segment.open(new File(directory, name)));
+                }
+            }
+        }
+        view = new View(Collections.unmodifiableList(loaded), null);
+        Set<String> live = new HashSet<>();
+        for (Segment segment : loaded) {
+            live.add(segment.file.getName());
+        }
+        File[] stale = directory.listFiles((dir, name) -> name.endsWith(".seg") && !live.contains(name));
+        if (stale != null) {
+            for (File file : stale) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        System.out.println("Search index loaded: " + loaded.size() + " segments, " + (nextDocNo - 1) + " messages.");
+    }
+
+    // Indexes whatever the logs gained since the last flush, including logs written before the index existed.
+    void catchUp(Collection<String> logFiles, MessageLog messageLog) throws IOException {
+        long added = 0;
+        for (String file : logFiles) {
+            long latest = messageLog.latestId(file);
+            long from = indexedThrough(file) + 1;
+            while (from <= latest) {
+                int limit = (int) Math.min(500, latest - from + 1);
+                MessageLog.HistoryPage page = messageLog.readPage(file, from + limit, limit);
+                long id = page.firstId;
+                for (String line : page.lines) {
+                    add(file, id++, line);
+                }
+                added += page.lines.size();
+                from += limit;
+            }
+        }
+        if (added > 0) {
+            System.out.println("Search index caught up with " + added + " messages.");
+            flush();
+        }
+    }
+
+    private long indexedThrough(String file) {
+        lock.lock();
+        try {
+            return indexedThrough.getOrDefault(file, 0L);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Callers hold the conversation lock, so ids arrive in order for each file.
+    void add(String file, long id, String message) {
+        Set<String> terms = new LinkedHashSet<>(terms(message));
+        boolean full;
+        lock.lock();
+        try {
+            if (id <= indexedThrough.getOrDefault(file, 0L)) {
+                return;
+            }
+            indexedThrough.put(file, id);
+            int fileId = fileId(file);
+            long docNo = nextDocNo++;
+            for (String term : terms) {
+                buffer.computeIfAbsent(term, key -> new Postings()).add(docNo, fileId, id);
+            }
+            full = ++bufferedDocs >= FLUSH_DOCS;
+        } finally {
+            lock.unlock();
+        }
+        if (full) {
+            merger.execute(this::flushQuietly);
+        }
+    }
+
+    private int fileId(String file) {
+        Integer fileId = fileIds.get(file);
+        if (fileId == null) {
+            fileId = files.size();
+            fileIds.put(file, fileId);
+            files.add(file);
+        }
+        return fileId;
+    }
+
+    static List<String> terms(String text) {
+        if (text.length() > 11 && text.charAt(0) == '[' && text.charAt(9) == ']') {
+            text = text.substring(11);
+        }
+        List<String> terms = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start >= MIN_TERM_LENGTH && i - start <= MAX_TERM_LENGTH) {
+                    terms.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    void flushQuietly() {
+        try {
+            flush();
+        } catch (IOException e) {
+            System.out.println("Search index flush failed: " + e.getMessage());
+        }
+    }
+
+    // Writes the buffer as a new segment; searches keep reading the frozen buffer until the segment is installed.
+    void flush() throws IOException {
+        flushLock.lock();
+        try {
+            HashMap<String, Postings> frozen;
+            Map<String, Long> through;
+            String name;
+            int docs;
+            lock.lock();
+            try {
+                if (bufferedDocs == 0) {
+                    return;
+                }
+                frozen = buffer;
+                view = new View(view.segments, frozen);
+                docs = bufferedDocs;
+                buffer = new HashMap<>();
+                bufferedDocs = 0;
+                through = new HashMap<>(indexedThrough);
+                name = "segment-" + nextSegment++ + ".seg";
+            } finally {
+                lock.unlock();
+            }
+            File file = new File(directory, name);
+            try (SegmentWriter writer = new SegmentWriter(file, docs)) {
+                String[] terms = frozen.keySet().toArray(new String[0]);
+                Arrays.sort(terms);
+                for (String term : terms) {
+                    writer.add(term, frozen.get(term));
+                }
+            }
+            List<Segment> updated = new ArrayList<>(view.segments);
+            updated.add(Segment.open(file));
+            view = new View(Collections.unmodifiableList(updated), null);
+            writeManifest(through);
+            mergeIfNeeded(through);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    // The newest segments share the lowest level; once MERGE_FACTOR of them pile up they become one segment.
+    private void mergeIfNeeded(Map<String, Long> through) throws IOException {
+        while (true) {
+            List<Segment> current = view.segments;
+            int end = current.size();
+            if (end < MERGE_FACTOR) {
+                return;
+            }
+            int level = current.get(end - 1).level();
+            int start = end;
+            while (start > 0 && current.get(start - 1).level() == level) {
+                start--;
+            }
+            if (end - start < MERGE_FACTOR) {
+                return;
+            }
+            start = end - MERGE_FACTOR;
+            List<Segment> merging = current.subList(start, end);
+            String name;
+            lock.lock();
+            try {
+                name = "segment-" + nextSegment++ + ".seg";
+            } finally {
+                lock.unlock();
+            }
+            File file = new File(directory, name);
+            merge(merging, file);
+            List<Segment> updated = new ArrayList<>(current.subList(0, start));
+            updated.add(Segment.open(file));
+            view = new View(Collections.unmodifiableList(updated), view.flushing);
+            writeManifest(through);
+            // mapped buffers stay readable for searches in flight after the files are unlinked
+            for (Segment old : merging) {
+                Files.deleteIfExists(old.file.toPath());
+            }
+        }
+    }
+
+    private static void merge(List<Segment> merging, File target) throws IOException {
+        PriorityQueue<String> pending = new PriorityQueue<>();
+        int[] cursors = new int[merging.size()];
+        for (Segment segment : merging) {
+            if (segment.terms.length > 0) {
+                pending.add(segment.terms[0]);
+            }
+        }
+        int docs = 0;
+        for (Segment segment : merging) {
+            docs += segment.docs;
+        }
+        try (SegmentWriter writer = new SegmentWriter(target, docs)) {
+            while (!pending.isEmpty()) {
+                String term = pending.poll();
+                while (term.equals(pending.peek())) {
+                    pending.poll();
+                }
+                Postings postings = new Postings();
+                for (int i = 0; i < merging.size(); i++) {
+                    Segment segment = merging.get(i);
+                    if (cursors[i] < segment.terms.length && segment.terms[cursors[i]].equals(term)) {
+                        segment.decode(cursors[i], postings, null, Long.MAX_VALUE);
+                        if (++cursors[i] < segment.terms.length) {
+                            pending.add(segment.terms[cursors[i]]);
+                        }
+                    }
+                }
+                writer.add(term, postings);
+            }
+        }
+    }
+
+    private void writeManifest(Map<String, Long> through) throws IOException {
+        Properties properties = new Properties();
+        List<Segment> segments = view.segments;
+        StringJoiner names = new StringJoiner(",");
+        for (Segment segment : segments) {
+            names.add(segment.file.getName());
+        }
+        long maxDocNo = 0;
+        for (Segment segment : segments) {
+            maxDocNo = Math.max(maxDocNo, segment.maxDocNo);
+        }
+        properties.setProperty("segments", names.toString());
+        properties.setProperty("nextDocNo", Long.toString(maxDocNo + 1));
+        lock.lock();
+        try {
+            properties.setProperty("nextSegment", Integer.toString(nextSegment));
+            for (int i = 0; i < files.size(); i++) {
+                properties.setProperty("file." + i, files.get(i));
+                properties.setProperty("through." + i, Long.toString(through.getOrDefault(files.get(i), 0L)));
+            }
+        } finally {
+            lock.unlock();
+        }
+        File temp = new File(directory, "manifest.properties.tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        Files.move(temp.toPath(), new File(directory, "manifest.properties").toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Messages containing every term, newest first, restricted to the given files and to documents below beforeDocNo.
+    List<Hit> search(String query, Set<String> allowedFiles, long beforeDocNo, int limit) throws IOException {
+        List<String> queryTerms = new ArrayList<>(new LinkedHashSet<>(terms(query)));
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Set<Integer> allowed = new HashSet<>();
+        String[] fileNames;
+        List<Postings> buffered = new ArrayList<>();
+        View current;
+        lock.lock();
+        try {
+            for (String file : allowedFiles) {
+                Integer fileId = fileIds.get(file);
+                if (fileId != null) {
+                    allowed.add(fileId);
+                }
+            }
+            fileNames = files.toArray(new String[0]);
+            buffered.add(intersect(buffer, queryTerms));
+            // read with the buffer, as a flush freezes the buffer under the same lock
+            current = view;
+        } finally {
+            lock.unlock();
+        }
+        if (current.flushing != null) {
+            buffered.add(intersect(current.flushing, queryTerms));
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        for (Postings postings : buffered) {
+            collect(postings, allowed, fileNames, beforeDocNo, limit, hits);
+        }
+        List<Segment> segments = current.segments;
+        for (int i = segments.size() - 1; i >= 0 && hits.size() < limit; i--) {
+            Segment segment = segments.get(i);
+            if (segment.minDocNo >= beforeDocNo) {
+                continue;
+            }
+            collect(segment.search(queryTerms, allowed, beforeDocNo), allowed, fileNames, beforeDocNo, limit, hits);
+        }
+        hits.sort((a, b) -> Long.compare(b.docNo, a.docNo));
+        return hits.size() > limit ? hits.subList(0, limit) : hits;
+    }
+
+    private static Postings intersect(Map<String, Postings> postingsByTerm, List<String> queryTerms) {
+        Postings result = null;
+        for (String term : queryTerms) {
+            Postings postings = postingsByTerm.get(term);
+            if (postings == null) {
+                return new Postings();
+            }
+            result = result == null ? postings.copy() : result.retain(postings.docNos());
+        }
+        return result;
+    }
+
+    private static void collect(Postings postings, Set<Integer> allowed, String[] fileNames, long beforeDocNo,
+                                int limit, List<Hit> hits) {
+        int found = 0;
+        for (int i = postings.size - 1; i >= 0 && found < limit; i--) {
+            long docNo = postings.docNo(i);
+            int fileId = postings.fileId(i);
+            if (docNo < beforeDocNo && allowed.contains(fileId)) {
+                hits.add(new Hit(docNo, fileNames[fileId], postings.id(i)));
+                found++;
+            }
+        }
+    }
+
+    void close() {
+        flushQuietly();
+        merger.shutdown();
+    }
+
+    // Parallel arrays of (document number, file id, message id), ascending by document number.
+    private static class Postings {
+        private long[] docNos = new long[4];
+        private int[] fileIds = new int[4];
+        private long[] ids = new long[4];
+        private int size;
+
+        void add(long docNo, int fileId, long id) {
+            if (size == docNos.length) {
+                docNos = Arrays.copyOf(docNos, size * 2);
+                fileIds = Arrays.copyOf(fileIds, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            docNos[size] = docNo;
+            fileIds[size] = fileId;
+            ids[size] = id;
+            size++;
+        }
+
+        long docNo(int i) {
+            return docNos[i];
+        }
+
+        int fileId(int i) {
+            return fileIds[i];
+        }
+
+        long id(int i) {
+            return ids[i];
+        }
+
+        long[] docNos() {
+            return Arrays.copyOf(docNos, size);
+        }
+
+        Postings copy() {
+            Postings copy = new Postings();
+            for (int i = 0; i < size; i++) {
+                copy.add(docNos[i], fileIds[i], ids[i]);
+            }
+            return copy;
+        }
+
+        // Keeps the entries whose document number is in the sorted array.
+        Postings retain(long[] sorted) {
+            Postings kept = new Postings();
+            int j = 0;
+            for (int i = 0; i < size && j < sorted.length; i++) {
+                while (j < sorted.length && sorted[j] < docNos[i]) {
+                    j++;
+                }
+                if (j < sorted.length && sorted[j] == docNos[i]) {
+                    kept.add(docNos[i], fileIds[i], ids[i]);
+                }
+            }
+            return kept;
+        }
+    }
+
+    // Layout: magic, doc count, min and max doc number, term count, then per term (UTF-8 length and bytes, count,
+    // offset, length), then the postings as varints: doc number delta, file id, message id.
+    private static class SegmentWriter implements Closeable {
+        private final File file;
+        private final ByteArrayOutputStream postingsBytes = new ByteArrayOutputStream();
+        private final List<String> terms = new ArrayList<>();
+        private final List<long[]> entries = new ArrayList<>();
+        private final int docs;
+        private long minDocNo = Long.MAX_VALUE;
+        private long maxDocNo;
+
+        SegmentWriter(File file, int docs) {
+            this.file = file;
+            this.docs = docs;
+        }
+
+        void add(String term, Postings postings) {
+            long offset = postingsBytes.size();
+            long previous = 0;
+            for (int i = 0; i < postings.size; i++) {
+                writeVarLong(postingsBytes, postings.docNo(i) - previous);
+                writeVarLong(postingsBytes, postings.fileId(i));
+                writeVarLong(postingsBytes, postings.id(i));
+                previous = postings.docNo(i);
+            }
+            if (postings.size > 0) {
+                minDocNo = Math.min(minDocNo, postings.docNo(0));
+                maxDocNo = Math.max(maxDocNo, postings.docNo(postings.size - 1));
+            }
+            terms.add(term);
+            entries.add(new long[] {postings.size, offset, postingsBytes.size() - offset});
+        }
+
+        @Override
+        public void close() throws IOException {
+            File temp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(SEGMENT_MAGIC);
+                out.writeInt(docs);
+                out.writeLong(minDocNo == Long.MAX_VALUE ? 0 : minDocNo);
+                out.writeLong(maxDocNo);
+                out.writeInt(terms.size());
+                for (int i = 0; i < terms.size(); i++) {
+                    long[] entry = entries.get(i);
+                    byte[] term = terms.get(i).getBytes(StandardCharsets.UTF_8);
+                    out.writeShort(term.length);
+                    out.write(term);
+                    out.writeInt((int) entry[0]);
+                    out.writeLong(entry[1]);
+                    out.writeInt((int) entry[2]);
+                }
+                postingsBytes.writeTo(out);
+            }
+            try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private static class Segment {
+        final File file;
+        final int docs;
+        final long minDocNo;
+        final long maxDocNo;
+        final String[] terms;
+        final int[] counts;
+        final long[] offsets;
+        final int[] lengths;
+        final ByteBuffer postings;
+
+        private Segment(File file, int docs, long minDocNo, long maxDocNo, String[] terms, int[] counts,
+                        long[] offsets, int[] lengths, ByteBuffer postings) {
+            this.file = file;
+            this.docs = docs;
+            this.minDocNo = minDocNo;
+            this.maxDocNo = maxDocNo;
+            this.terms = terms;
+            this.counts = counts;
+            this.offsets = offsets;
+            this.lengths = lengths;
+            this.postings = postings;
+        }
+
+        static Segment open(File file) throws IOException {
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (mapped.getInt() != SEGMENT_MAGIC) {
+                throw new IOException("Not a search segment: " + file);
+            }
+            int docs = mapped.getInt();
+            long minDocNo = mapped.getLong();
+            long maxDocNo = mapped.getLong();
+            int termCount = mapped.getInt();
+            String[] terms = new String[termCount];
+            int[] counts = new int[termCount];
+            long[] offsets = new long[termCount];
+            int[] lengths = new int[termCount];
+            for (int i = 0; i < termCount; i++) {
+                byte[] term = new byte[mapped.getShort()];
+                mapped.get(term);
+                terms[i] = new String(term, StandardCharsets.UTF_8);
+                counts[i] = mapped.getInt();
+                offsets[i] = mapped.getLong();
+                lengths[i] = mapped.getInt();
+            }
+            return new Segment(file, docs, minDocNo, maxDocNo, terms, counts, offsets, lengths, mapped.slice());
+        }
+
+        int level() {
+            int level = 0;
+            for (long size = FLUSH_DOCS; docs > size * MERGE_FACTOR / 2; size *= MERGE_FACTOR) {
+                level++;
+            }
+            return level;
+        }
+
+        // Decodes the rarest term with the filters applied, then drops entries missing from the other terms.
+        Postings search(List<String> queryTerms, Set<Integer> allowed, long beforeDocNo) {
+            int[] found = new int[queryTerms.size()];
+            for (int i = 0; i < found.length; i++) {
+                found[i] = Arrays.binarySearch(terms, queryTerms.get(i));
+                if (found[i] < 0) {
+                    return new Postings();
+                }
+            }
+            int rarest = found[0];
+            for (int term : found) {
+                if (counts[term] < counts[rarest]) {
+                    rarest = term;
+                }
+            }
+            Postings result = new Postings();
+            decode(rarest, result, allowed, beforeDocNo);
+            for (int term : found) {
+                if (term != rarest && result.size > 0) {
+                    Postings other = new Postings();
+                    decode(term, other, null, beforeDocNo);
+                    result = result.retain(other.docNos());
+                }
+            }
+            return result;
+        }
+
+        void decode(int term, Postings into, Set<Integer> allowed, long beforeDocNo) {
+            ByteBuffer buffer = postings.duplicate();
+            buffer.position((int) offsets[term]).limit((int) (offsets[term] + lengths[term]));
+            long docNo = 0;
+            for (int i = 0; i < counts[term]; i++) {
+                docNo += readVarLong(buffer);
+                int fileId = (int) readVarLong(buffer);
+                long id = readVarLong(buffer);
+                if (docNo >= beforeDocNo) {
+                    break;
+                }
+                if (allowed == null || allowed.contains(fileId)) {
+                    into.add(docNo, fileId, id);
+                }
+            }
+        }
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,90 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// A logged-in session holds one token. When the session closes the token is parked with the newest message id of
+// each of the user's conversations, so a resume within the grace period can replay exactly what was missed.
+class SessionTokens {
+    static final String FILE_AUTH = "/auth";
+
+    private static final long RESUME_MILLIS = Long.getLong("chat.resumeMinutes", 10) * 60_000;
+    private static final int TOKEN_BYTES = 24;
+
+    static class Resumed {
+        final String username;
+        final Map<String, Long> latestAtClose;
+        // Conversations missing from latestAtClose started after the disconnect, unless the session never closed.
+        final boolean closed;
+        private final long expiresAt;
+
+        Resumed(String username, Map<String, Long> latestAtClose, boolean closed, long expiresAt) {
+            this.username = username;
+            this.latestAtClose = latestAtClose;
+            this.closed = closed;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final SecureRandom random = new SecureRandom();
+    private final Map<ChatSession, String> tokensBySession = new ConcurrentHashMap<>();
+    private final Map<String, ChatSession> sessionsByToken = new ConcurrentHashMap<>();
+    private final Map<String, Resumed> parked = new ConcurrentHashMap<>();
+
+    String issue(ChatSession session) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        tokensBySession.put(session, token);
+        sessionsByToken.put(token, session);
+        return token;
+    }
+
+    void park(ChatSession session, Map<String, Long> latest) {
+        String token = tokensBySession.remove(session);
+        if (token != null && sessionsByToken.remove(token, session)) {
+            parked.put(token, new Resumed(session.getUsername(), latest, true,
+                    System.currentTimeMillis() + RESUME_MILLIS));
+        }
+    }
+
+    // An explicit logout cannot be resumed.
+    void revoke(ChatSession session) {
+        String token = tokensBySession.remove(session);
+        if (token != null) {
+            sessionsByToken.remove(token, session);
+        }
+    }
+
+    boolean isTracked(ChatSession session) {
+        return tokensBySession.containsKey(session);
+    }
+
+    // The file port takes the token of a live session instead of a password; it does not consume it.
+    String username(String token) {
+        ChatSession session = sessionsByToken.get(token);
+        return session != null ? session.getUsername() : null;
+    }
+
+    // Tokens are single use. A session that is still open (its socket died unnoticed) is closed and taken over.
+    Resumed take(String token) {
+        Resumed resumed = parked.remove(token);
+        if (resumed != null) {
+            return resumed.expiresAt > System.currentTimeMillis() ? resumed : null;
+        }
+        ChatSession stale = sessionsByToken.remove(token);
+        if (stale == null || !tokensBySession.remove(stale, token)) {
+            return null;
+        }
+        stale.close();
+        return new Resumed(stale.getUsername(), Collections.emptyMap(), false, Long.MAX_VALUE);
+    }
+
+    int expire() {
+        long now = System.currentTimeMillis();
+        int before = parked.size();
+        parked.values().removeIf(resumed -> resumed.expiresAt <= now);
+        return before - parked.size();
+    }
+}
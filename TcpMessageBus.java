@@ -0,0 +1,244 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+// Every node dials every configured peer and sends on that connection; it receives on the connections peers dial in.
+// Both ends of a link prove they know chat.clusterSecret by an HMAC over fresh nonces before any event flows.
+class TcpMessageBus implements MessageBus {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int HANDSHAKE_MILLIS = 10_000;
+    private static final int NONCE_BYTES = 32;
+    private static final int WRITE_BATCH = 256;
+    private static final int PEER_QUEUE_SIZE = Integer.getInteger("chat.clusterQueueSize", 65536);
+
+    private final String nodeId;
+    private final InetSocketAddress bindAddress;
+    private final List<InetSocketAddress> peerAddresses;
+    private final byte[] secret;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, OutboundQueue> peers = new ConcurrentHashMap<>();
+    private Listener listener;
+
+    TcpMessageBus(String nodeId, InetSocketAddress bindAddress, List<InetSocketAddress> peerAddresses, String secret) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.peerAddresses = peerAddresses;
+        this.secret = secret != null ? secret.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    // -Dchat.clusterPort=13000 -Dchat.clusterPeers=host:13001,host:13002 -Dchat.nodeId=node-a -Dchat.clusterSecret=...
+    // The port listens on loopback unless -Dchat.clusterBind names the address peers reach this node on.
+    static TcpMessageBus fromSystemProperties() {
+        int port = Integer.getInteger("chat.clusterPort", 13000);
+        String bind = System.getProperty("chat.clusterBind");
+        InetSocketAddress bindAddress = bind != null
+                ? new InetSocketAddress(bind, port)
+                : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        List<InetSocketAddress> peers = new ArrayList<>();
+        for (String peer : System.getProperty("chat.clusterPeers", "").split(",")) {
+            int separator = peer.lastIndexOf(':');
+            if (separator > 0) {
+                peers.add(new InetSocketAddress(peer.substring(0, separator).trim(),
+                        Integer.parseInt(peer.substring(separator + 1).trim())));
+            }
+        }
+        return new TcpMessageBus(System.getProperty("chat.nodeId", "node-" + port), bindAddress, peers,
+                System.getProperty("chat.clusterSecret"));
+    }
+
+    @Override
+    public String nodeId() {
+        return nodeId;
+    }
+
+    @Override
+    public void start(Listener listener) throws IOException {
+        if (secret == null || secret.length == 0) {
+            throw new IOException("set -Dchat.clusterSecret to the same secret on every node");
+        }
+        this.listener = listener;
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(bindAddress);
+        daemon("cluster-accept", () -> {
+            try (ServerSocketChannel serverChannel = server) {
+                while (true) {
+                    SocketChannel channel = serverChannel.accept();
+                    daemon("cluster-in", () -> receive(channel));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+        for (InetSocketAddress address : peerAddresses) {
+            daemon("cluster-out-" + address.getPort(), () -> connect(address));
+        }
+        System.out.println("Cluster node " + nodeId + " listening on " + bindAddress + " with "
+                + peerAddresses.size() + " peers.");
+    }
+
+    @Override
+    public void publish(Frame event) {
+        for (OutboundQueue queue : peers.values()) {
+            queue.offer(event);
+        }
+    }
+
+    @Override
+    public boolean send(String node, Frame event) {
+        OutboundQueue queue = peers.get(node);
+        return queue != null && queue.offerIfRoom(event);
+    }
+
+    // Socket streams rather than channel streams, so the handshake can time out.
+    private void receive(SocketChannel channel) {
+        String node = null;
+        try (SocketChannel peer = channel) {
+            peer.socket().setSoTimeout(HANDSHAKE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(peer.socket().getInputStream()));
+            DataOutputStream out = new DataOutputStream(peer.socket().getOutputStream());
+            String dialer = in.readUTF();
+            byte[] dialerNonce = readNonce(in);
+            byte[] nonce = nonce();
+            out.writeUTF(nodeId);
+            out.write(nonce);
+            out.write(proof("accept", dialerNonce, nonce, dialer, nodeId));
+            out.flush();
+            if (!MessageDigest.isEqual(readNonce(in), proof("dial", dialerNonce, nonce, dialer, nodeId))) {
+                System.out.println("Rejected cluster link from " + peer.getRemoteAddress() + ": wrong secret");
+                return;
+            }
+            peer.socket().setSoTimeout(0);
+            node = dialer;
+            while (true) {
+                listener.onEvent(node, Frame.read(in));
+            }
+        } catch (EOFException e) {
+            // peer went away
+        } catch (IOException e) {
+            System.out.println("Cluster link from " + node + " failed: " + e.getMessage());
+        } finally {
+            if (node != null) {
+                listener.onPeerDown(node);
+            }
+        }
+    }
+
+    private void connect(InetSocketAddress address) {
+        while (true) {
+            String node = null;
+            OutboundQueue queue = new OutboundQueue(PEER_QUEUE_SIZE, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+            queue.setFormat(Frame.Format.BINARY);
+            try (SocketChannel channel = SocketChannel.open(address)) {
+                channel.socket().setSoTimeout(HANDSHAKE_MILLIS);
+                DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+                DataOutputStream out = new DataOutputStream(channel.socket().getOutputStream());
+                byte[] nonce = nonce();
+                out.writeUTF(nodeId);
+                out.write(nonce);
+                out.flush();
+                String acceptor = in.readUTF();
+                byte[] acceptorNonce = readNonce(in);
+                if (!MessageDigest.isEqual(readNonce(in), proof("accept", nonce, acceptorNonce, nodeId, acceptor))) {
+                    System.out.println("Cluster peer " + acceptor + " at " + address + " does not share the secret.");
+                    throw new IOException("wrong cluster secret");
+                }
+                out.write(proof("dial", nonce, acceptorNonce, nodeId, acceptor));
+                out.flush();
+                if (acceptor.equals(nodeId)) {
+                    return;
+                }
+                node = acceptor;
+                peers.put(node, queue);
+                System.out.println("Cluster link to " + node + " at " + address + " is up.");
+
+                // The snapshot goes straight to the socket, so it waits on the peer instead of being dropped.
+                List<ByteBuffer> batch = new ArrayList<>();
+                for (Iterator<Frame> snapshot = listener.snapshot().iterator(); snapshot.hasNext(); ) {
+                    batch.add(snapshot.next().encode(Frame.Format.BINARY).duplicate());
+                    if (batch.size() == WRITE_BATCH || !snapshot.hasNext()) {
+                        write(channel, batch);
+                        batch.clear();
+                    }
+                }
+                while (!(batch = queue.take(WRITE_BATCH)).isEmpty()) {
+                    write(channel, batch);
+                    // a dropped event may have been a registration or presence change; reconnecting resends the snapshot
+                    if (queue.hasOverflowed()) {
+                        throw new IOException("events were dropped, resynchronizing");
+                    }
+                }
+            } catch (IOException e) {
+                if (node != null) {
+                    System.out.println("Cluster link to " + node + " lost: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                queue.close();
+                if (node != null) {
+                    peers.remove(node, queue);
+                }
+            }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, List<ByteBuffer> batch) throws IOException {
+        ByteBuffer[] buffers = batch.toArray(new ByteBuffer[0]);
+        while (buffers[buffers.length - 1].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // Nonces and proofs are both NONCE_BYTES long (an HMAC-SHA256).
+    private static byte[] readNonce(DataInputStream in) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        in.readFully(nonce);
+        return nonce;
+    }
+
+    // The role label keeps a node's own proof from being reflected back to it as the other side's.
+    private byte[] proof(String role, byte[] dialerNonce, byte[] acceptorNonce, String dialer, String acceptor) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update((role + "\n" + dialer + "\n" + acceptor + "\n").getBytes(StandardCharsets.UTF_8));
+            mac.update(dialerNonce);
+            return mac.doFinal(acceptorNonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void daemon(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+// Credentials live in users.snapshot plus an append-only users.log; both hold name:iterations:salt:hash lines.
+class UserStore {
+    private static final int ITERATIONS = Integer.getInteger("chat.passwordIterations", 100_000);
+    private static final int HASH_THREADS = Integer.getInteger("chat.hashThreads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int HASH_QUEUE = Integer.getInteger("chat.hashQueue", 256);
+    private static final int COMPACT_AFTER = Integer.getInteger("chat.userLogCompactAfter", 1000);
+    private static final int MAX_NAME_LENGTH = 32;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final File legacyFile;
+    private final File snapshotFile;
+    private final File logFile;
+    private final Map<String, Credential> credentials = new ConcurrentHashMap<>();
+    private final Set<String> registering = ConcurrentHashMap.newKeySet();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadPoolExecutor hashPool;
+    private FileChannel log;
+    private int logRecords;
+    private boolean compacting;
+
+    UserStore(String legacyFileName) {
+        this.legacyFile = new File(legacyFileName);
+        this.snapshotFile = new File("users.snapshot");
+        this.logFile = new File("users.log");
+        this.hashPool = new ThreadPoolExecutor(HASH_THREADS, HASH_THREADS, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(HASH_QUEUE), runnable -> {
+                    Thread thread = new Thread(runnable, "password-hash");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    void load() throws IOException {
+        if (snapshotFile.exists()) {
+            readRecords(snapshotFile);
+        }
+        if (logFile.exists()) {
+            logRecords = readRecords(logFile);
+        }
+        log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        if (credentials.isEmpty() && legacyFile.exists()) {
+            migrateLegacy();
+        }
+        System.out.println("User store loaded with " + credentials.size() + " users.");
+    }
+
+    void close() throws IOException {
+        hashPool.shutdown();
+        writeLock.lock();
+        try {
+            if (log != null) {
+                log.close();
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    Set<String> usernames() {
+        return credentials.keySet();
+    }
+
+    // Names become file names and sit in newline- and comma-separated payloads, so they are limited to ASCII letters,
+    // digits and '-'. '_' joins the two names of a private chat file, so allowing it would let a_b + c and a + b_c
+    // share a file. "public", "ALL" and "room" would collide with a conversation name, the broadcast recipient and
+    // the room_<room>.txt logs of older versions.
+    static boolean isValidUsername(String username) {
+        if (username.isEmpty() || username.length() > MAX_NAME_LENGTH
+                || username.equalsIgnoreCase("public") || username.equalsIgnoreCase("ALL")
+                || username.equalsIgnoreCase("room")) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            char c = username.charAt(i);
+            if ((c < 'a' || c > 'z') && (c < 'A' || c > 'Z') && (c < '0' || c > '9') && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Completes with false when the name is taken or being registered right now.
+    CompletableFuture<Boolean> register(String username, String password) {
+        if (credentials.containsKey(username) || !registering.add(username)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        return hash(password, salt, ITERATIONS).thenApply(hash -> {
+            try {
+                append(new Credential(username, ITERATIONS, salt, hash));
+                return true;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((created, error) -> registering.remove(username));
+    }
+
+    CompletableFuture<Boolean> verify(String username, String password) {
+        Credential credential = credentials.get(username);
+        if (credential == null) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return hash(password, credential.salt, credential.iterations)
+                .thenApply(hash -> MessageDigest.isEqual(hash, credential.hash));
+    }
+
+    // The stored record for a user, so other cluster nodes can accept the same password without rehashing it.
+    String record(String username) {
+        Credential credential = credentials.get(username);
+        return credential != null ? credential.format() : null;
+    }
+
+    // Returns false when the record is malformed, names an invalid user or the user already exists here.
+    boolean addRecord(String record) throws IOException {
+        Credential credential = Credential.parse(record);
+        if (credential == null || !isValidUsername(credential.username)
+                || credentials.containsKey(credential.username)) {
+            return false;
+        }
+        append(credential);
+        return true;
+    }
+
+    // Hashing is CPU bound, so it runs on a small pool; a full queue fails fast with RejectedExecutionException.
+    private CompletableFuture<byte[]> hash(String password, byte[] salt, int iterations) {
+        try {
+            return CompletableFuture.supplyAsync(() -> pbkdf2(password, salt, iterations), hashPool);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    private void append(Credential credential) throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer record = ByteBuffer.wrap((credential.format() + "\n").getBytes(StandardCharsets.UTF_8));
+            while (record.hasRemaining()) {
+                log.write(record);
+            }
+            log.force(false);
+            credentials.put(credential.username, credential);
+            if (++logRecords >= COMPACT_AFTER && !compacting) {
+                compacting = true;
+                try {
+                    hashPool.execute(this::compact);
+                } catch (RejectedExecutionException e) {
+                    compacting = false;
+                }
+            }
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Folds the log into a new snapshot; registrations wait only while the snapshot is written.
+    private void compact() {
+        writeLock.lock();
+        try {
+            writeSnapshot();
+            log.truncate(0);
+            log.force(true);
+            logRecords = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            compacting = false;
+            writeLock.unlock();
+        }
+    }
+
+    private void writeSnapshot() throws IOException {
+        File temp = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Credential credential : credentials.values()) {
+                writer.write(credential.format());
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Hashes the old plaintext users.txt in parallel, then replaces it with a snapshot.
+    private void migrateLegacy() throws IOException {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(legacyFile), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.indexOf(':');
+                if (separator <= 0) {
+                    continue;
+                }
+                String username = line.substring(0, separator);
+                String password = line.substring(separator + 1);
+                byte[] salt = new byte[SALT_BYTES];
+                random.nextBytes(salt);
+                pending.add(CompletableFuture.runAsync(() -> credentials.put(username,
+                        new Credential(username, ITERATIONS, salt, pbkdf2(password, salt, ITERATIONS))), hashPool));
+                if (pending.size() >= HASH_QUEUE) {
+                    pending.remove(0).join();
+                }
+            }
+        }
+        pending.forEach(CompletableFuture::join);
+
+        writeLock.lock();
+        try {
+            writeSnapshot();
+        } finally {
+            writeLock.unlock();
+        }
+        Files.delete(legacyFile.toPath());
+        System.out.println("Migrated " + credentials.size() + " users from plaintext " + legacyFile.getName() + ".");
+    }
+
+    private int readRecords(File file) throws IOException {
+        int records = 0;
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Credential credential = Credential.parse(line);
+                if (credential != null) {
+                    credentials.put(credential.username, credential);
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    private static class Credential {
+        private static final Base64.Encoder ENCODER = Base64.getEncoder();
+        private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+        final String username;
+        final int iterations;
+        final byte[] salt;
+        final byte[] hash;
+
+        Credential(String username, int iterations, byte[] salt, byte[] hash) {
+            this.username = username;
+            this.iterations = iterations;
+            this.salt = salt;
+            this.hash = hash;
+        }
+
+        String format() {
+            return username + ":" + iterations + ":" + ENCODER.encodeToString(salt) + ":" + ENCODER.encodeToString(hash);
+        }
+
+        // Fields are found from the right, so a partly written last line is skipped rather than misread.
+        static Credential parse(String line) {
+            int hashStart = line.lastIndexOf(':');
+            int saltStart = line.lastIndexOf(':', hashStart - 1);
+            int iterationsStart = line.lastIndexOf(':', saltStart - 1);
+            if (iterationsStart <= 0) {
+                return null;
+            }
+            try {
+                byte[] hash = DECODER.decode(line.substring(hashStart + 1));
+                if (hash.length != HASH_BITS / 8) {
+                    return null;
+                }
+                return new Credential(line.substring(0, iterationsStart),
+                        Integer.parseInt(line.substring(iterationsStart + 1, saltStart)),
+                        DECODER.decode(line.substring(saltStart + 1, hashStart)), hash);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+    }
+}
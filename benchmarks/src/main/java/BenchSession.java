@@ -0,0 +1,36 @@
+// An in-memory ChatSession: it encodes each frame as a text client's queue would and keeps only a count.
+// It lives in the default package because ChatSession does; benchmarks create it reflectively.
+public class BenchSession implements ChatSession {
+    private static final OutboundQueue QUEUE = new OutboundQueue();
+
+    private final String username;
+    private long received;
+
+    public BenchSession(String username) {
+        this.username = username;
+    }
+
+    @Override
+    public String getUsername() {
+        return username;
+    }
+
+    @Override
+    public void send(Frame frame) {
+        frame.encode(Frame.Format.TEXT);
+        received++;
+    }
+
+    @Override
+    public OutboundQueue getOutboundQueue() {
+        return QUEUE;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long received() {
+        return received;
+    }
+}
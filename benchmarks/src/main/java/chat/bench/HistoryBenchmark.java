@@ -0,0 +1,71 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// /history over archives of different sizes: the login overview (newest page, usually cached) and random older
+// pages, which go to the offset index and the data file.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryBenchmark {
+    private static final MethodHandle DISPLAY_HISTORY = Server.method(Server.CHAT_SERVER, "displayChatHistory",
+            Server.CHAT_SESSION);
+    private static final MethodHandle DISPLAY_PAGE = Server.method(Server.CHAT_SERVER, "displayHistoryPage",
+            Server.CHAT_SESSION, String.class);
+
+    @Param({"1000", "100000", "1000000"})
+    public int messages;
+
+    private Object session;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        Workspace.claim();
+        writeArchive(Path.of("public_chat.txt"), messages, "alice");
+        writeArchive(Path.of("alice_bob.txt"), messages / 10, "bob");
+        Object conversationIndex = Server.field(Server.CHAT_SERVER, "conversationIndex");
+        Server.method(conversationIndex.getClass(), "addPrivate", String.class, String.class)
+                .invoke(conversationIndex, "alice", "bob");
+        session = Server.newSession("alice");
+        Server.clientHandlers().put("alice", session);
+        DISPLAY_HISTORY.invokeExact(session);
+    }
+
+    private static void writeArchive(Path file, int lines, String sender) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < lines; i++) {
+                writer.write("[12:00:00] " + sender + ": archived message number " + i + "\n");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.clientHandlers().clear();
+        Server.closeMessageLog();
+        Workspace.clean();
+    }
+
+    @Benchmark
+    public void displayChatHistory() throws Throwable {
+        DISPLAY_HISTORY.invokeExact(session);
+    }
+
+    @Benchmark
+    public void olderHistoryPage() throws Throwable {
+        long before = 1 + ThreadLocalRandom.current().nextLong(messages);
+        DISPLAY_PAGE.invokeExact(session, "public before " + before + " limit 50");
+    }
+}
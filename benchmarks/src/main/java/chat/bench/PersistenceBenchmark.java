@@ -0,0 +1,48 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+// saveMessage append throughput: id assignment, history cache and search index updates on the caller, with the
+// writer thread draining to disk. Run with -jvmArgsAppend -Dchat.fsync=batch to include the commit wait.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final MethodHandle SAVE = Server.method(Server.CHAT_SERVER, "saveMessage",
+            String.class, String.class);
+
+    @Param({"1", "64"})
+    public int conversations;
+
+    private String[] files;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.claim();
+        files = new String[conversations];
+        for (int i = 0; i < conversations; i++) {
+            files[i] = conversations == 1 ? "public_chat.txt" : "user" + i + "_zed.txt";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.closeMessageLog();
+        Workspace.clean();
+    }
+
+    @Benchmark
+    public CompletableFuture<?> saveMessage() throws Throwable {
+        String file = files[next++ % files.length];
+        return (CompletableFuture<?>) SAVE.invokeExact(file, "[12:00:00] alice: a typical chat message to store");
+    }
+}
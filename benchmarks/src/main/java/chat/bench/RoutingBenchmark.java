@@ -0,0 +1,59 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Public fan-out to N connected in-memory sessions, private routing between two of them, and the file-name helper.
+// Both message paths include the log append, as they do in the server.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoutingBenchmark {
+    private static final MethodHandle BROADCAST = Server.method(Server.CHAT_SERVER, "broadcastMessage",
+            String.class, String.class);
+    private static final MethodHandle PRIVATE = Server.method(Server.CHAT_SERVER, "privateMessage",
+            String.class, String.class, String.class);
+    private static final MethodHandle CHAT_FILE_NAME = Server.method(Server.CHAT_SERVER, "getChatFileName",
+            String.class, String.class);
+
+    @Param({"10", "100", "1000"})
+    public int sessions;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.claim();
+        Map<String, Object> clientHandlers = Server.clientHandlers();
+        for (int i = 0; i < sessions; i++) {
+            clientHandlers.put("user" + i, Server.newSession("user" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Server.clientHandlers().clear();
+        Server.closeMessageLog();
+        Workspace.clean();
+    }
+
+    @Benchmark
+    public void broadcastMessage() throws Throwable {
+        BROADCAST.invokeExact("user0", "hello everyone, this is a typical chat message");
+    }
+
+    @Benchmark
+    public void privateMessage() throws Throwable {
+        PRIVATE.invokeExact("user0", "user1", "hello, this is a typical private message");
+    }
+
+    @Benchmark
+    public String getChatFileName() throws Throwable {
+        return (String) CHAT_FILE_NAME.invokeExact("zoe", "adam");
+    }
+}
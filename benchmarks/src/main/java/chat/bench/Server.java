@@ -0,0 +1,89 @@
+package chat.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.Map;
+
+// The server classes live in the default package, which named packages cannot import, so benchmarks reach them
+// through method handles looked up once. Session arguments are typed as Object to keep invokeExact usable.
+final class Server {
+    static final Class<?> CHAT_SERVER = type("ChatServer");
+    static final Class<?> CHAT_SESSION = type("ChatSession");
+
+    private Server() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Server classes are not on the classpath", e);
+        }
+    }
+
+    static MethodHandle method(Class<?> owner, String name, Class<?>... parameters) {
+        try {
+            Method method = owner.getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            MethodType erased = handle.type();
+            for (int i = 0; i < erased.parameterCount(); i++) {
+                if (erased.parameterType(i) == CHAT_SESSION) {
+                    erased = erased.changeParameterType(i, Object.class);
+                }
+            }
+            return handle.asType(erased);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner.getName() + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            Constructor<?> constructor = owner.getDeclaredConstructor(parameters);
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner.getName() + " constructor", e);
+        }
+    }
+
+    static Object field(Class<?> owner, String name) {
+        try {
+            Field field = owner.getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Missing " + owner.getName() + "." + name, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> clientHandlers() {
+        return (Map<String, Object>) field(CHAT_SERVER, "clientHandlers");
+    }
+
+    static Object newSession(String username) {
+        try {
+            return type("BenchSession").getConstructor(String.class).newInstance(username);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Stops the message log writer so the files can be removed.
+    static void closeMessageLog() {
+        try {
+            Object messageLog = field(CHAT_SERVER, "messageLog");
+            Method close = messageLog.getClass().getDeclaredMethod("close");
+            close.setAccessible(true);
+            close.invoke(messageLog);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package chat.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// User store startup (what loadUsers became): reading a snapshot of N hashed accounts.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SingleShotTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StartupBenchmark {
+    private static final Class<?> USER_STORE = Server.type("UserStore");
+    private static final MethodHandle NEW_STORE = Server.constructor(USER_STORE, String.class);
+    private static final MethodHandle LOAD = Server.method(USER_STORE, "load");
+    private static final MethodHandle CLOSE = Server.method(USER_STORE, "close");
+
+    @Param({"10000", "1000000"})
+    public int users;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Workspace.claim();
+        Random random = new Random(42);
+        Base64.Encoder encoder = Base64.getEncoder();
+        byte[] salt = new byte[16];
+        byte[] hash = new byte[32];
+        try (BufferedWriter writer = Files.newBufferedWriter(Path.of("users.snapshot"), StandardCharsets.UTF_8)) {
+            for (int i = 0; i < users; i++) {
+                random.nextBytes(salt);
+                random.nextBytes(hash);
+                writer.write("user" + i + ":100000:" + encoder.encodeToString(salt) + ":"
+                        + encoder.encodeToString(hash) + "\n");
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Workspace.clean();
+    }
+
+    @Benchmark
+    public Object loadUsers() throws Throwable {
+        Object store = NEW_STORE.invoke("users.txt");
+        LOAD.invoke(store);
+        CLOSE.invoke(store);
+        return store;
+    }
+}
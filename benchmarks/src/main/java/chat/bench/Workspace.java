@@ -0,0 +1,42 @@
+package chat.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// ChatServer reads and writes its files relative to the working directory, so benchmarks must run from an empty
+// scratch directory; they refuse to start anywhere that already holds chat data and delete what they create.
+final class Workspace {
+    private static final String[] MARKERS = {"ChatServer.java", "public_chat.txt", "users.txt", "users.snapshot"};
+
+    private Workspace() {
+    }
+
+    static void claim() throws IOException {
+        for (String marker : MARKERS) {
+            if (new File(marker).exists()) {
+                throw new IllegalStateException("Run the benchmarks from an empty directory; found " + marker + " in "
+                        + new File(".").getCanonicalPath());
+            }
+        }
+        Files.createDirectories(Path.of("search"));
+    }
+
+    static void clean() throws IOException {
+        File[] files = new File(".").listFiles((dir, name) -> name.endsWith(".txt") || name.endsWith(".idx")
+                || name.startsWith("users.") || name.equals("search") || name.equals("offline"));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try (Stream<Path> paths = Files.walk(file.toPath())) {
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}